@@ -1,10 +1,12 @@
 package com.jpd;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -38,6 +40,12 @@ public class ArgParser {
          */
         private final Boolean allowParallel;
 
+        /** Number of render threads used if parallel. */
+        private final Integer jobs;
+
+        /** Resolve `${...}` references using a reference graph. */
+        private final Boolean graphResolution;
+
         /** The destinations file. */
         private final String destinations;
 
@@ -47,16 +55,67 @@ public class ArgParser {
         /** Previous vars.json. Used to chain JVarler invocations. */
         private final String varsJson;
 
+        /** Run as daemon listening on this (unix domain) socket. */
+        private final String daemon;
+
+        /** Forward invocation to daemon listening on this socket. */
+        private final String connect;
+
+        /** Keep running, re-render on changes. */
+        private final Boolean watch;
+
+        /** Only render destinations whose inputs changed since last run. */
+        private final Boolean incremental;
+
+        /** Sync outputs to disk before committing them. */
+        private final Boolean fsync;
+
+        /** Run shells in reused bash sessions. */
+        private final Boolean shellSession;
+
+        /** Write exports without whitespace. */
+        private final Boolean compactExports;
+
+        /** Maximum config page size in MB, unlimited if 0. */
+        private final Integer maxPageSize;
+
+        /** Render cache dir, empty if not caching. */
+        private final String cacheDir;
+
+        /** Render cache maximum size in MB. */
+        private final Integer cacheSize;
+
+        /** Working dir relative paths (in destinations, of shells) are
+         * resolved against, empty for the process working dir.
+         */
+        private final String workingDir;
+
         /** Constructor. */
         private Args(
             List<String> configs, List<String> overrides, String destinations,
-            String exports, String varsJson, Boolean allowParallel) {
+            String exports, String varsJson, Boolean allowParallel, Integer jobs,
+            Boolean graphResolution, String daemon, String connect,
+            Boolean watch, Boolean incremental, String cacheDir, Integer cacheSize,
+            Boolean fsync, Boolean shellSession, Boolean compactExports, Integer maxPageSize, String workingDir) {
             this.configs = configs == null ? new ArrayList<>() : configs;
             this.overrides = overrides == null ? new ArrayList<>() : overrides;
             this.destinations = destinations == null ? "" : destinations;
             this.exports = exports == null ? "" : exports;
             this.varsJson = varsJson == null ? "" : varsJson;
             this.allowParallel = allowParallel;
+            this.jobs = jobs == null ? Runtime.getRuntime().availableProcessors() : jobs;
+            this.graphResolution = graphResolution;
+            this.daemon = daemon == null ? "" : daemon;
+            this.connect = connect == null ? "" : connect;
+            this.watch = watch != null && watch;
+            this.incremental = incremental != null && incremental;
+            this.cacheDir = cacheDir == null ? "" : cacheDir;
+            this.cacheSize = cacheSize;
+            this.fsync = fsync != null && fsync;
+            this.shellSession = shellSession != null && shellSession;
+            this.compactExports = compactExports != null && compactExports;
+            this.maxPageSize = maxPageSize == null ? 0 : maxPageSize;
+            this.workingDir = workingDir == null ? "" : workingDir;
         }
 
         /** Get from arg parser namespace. */
@@ -67,7 +126,43 @@ public class ArgParser {
                 namespace.get("destinations"),
                 namespace.get("exports"),
                 namespace.get("varsJson"),
-                namespace.get("allowParallel"));
+                namespace.get("allowParallel"),
+                namespace.get("jobs"),
+                namespace.get("graphResolution"),
+                namespace.get("daemon"),
+                namespace.get("connect"),
+                namespace.get("watch"),
+                namespace.get("incremental"),
+                namespace.get("cacheDir"),
+                namespace.get("cacheSize"),
+                namespace.get("fsync"),
+                namespace.get("shellSession"),
+                namespace.get("compactExports"),
+                namespace.get("maxPageSize"),
+                null);
+        }
+
+        /** Copy, with relative paths resolved against {@code workingDir}
+         * (e.g. a daemon client's) rather than the process working dir.
+         */
+        public Args withWorkingDir(String workingDir) {
+            Path dir = Path.of(workingDir);
+            List<String> myConfigs = new ArrayList<>();
+            configs.forEach(config -> myConfigs.add(resolve(dir, config)));
+            return new Args(
+                myConfigs, overrides, resolve(dir, destinations), resolve(dir, exports), resolve(dir, varsJson),
+                allowParallel, jobs, graphResolution, daemon, connect, watch, incremental,
+                resolve(dir, cacheDir), cacheSize, fsync, shellSession, compactExports, maxPageSize, workingDir);
+        }
+
+        /** Helper: resolve path against dir, unless empty (unset). */
+        private static String resolve(Path dir, String path) {
+            return path.isEmpty() ? path : dir.resolve(path).toString();
+        }
+
+        /** Working dir getter, empty for the process working dir. */
+        public String getWorkingDir() {
+            return workingDir;
         }
 
         /** Configs getter. */
@@ -85,6 +180,16 @@ public class ArgParser {
             return allowParallel;
         }
 
+        /** Get number of render threads. */
+        public Integer getJobs() {
+            return jobs;
+        }
+
+        /** Get graph resolution. */
+        public Boolean getGraphResolution() {
+            return graphResolution;
+        }
+
         /** Get destinations. */
         public String getDestinations() {
             return destinations;
@@ -99,6 +204,56 @@ public class ArgParser {
         public String getVarsJson() {
             return varsJson;
         }
+
+        /** Get daemon socket path. */
+        public String getDaemon() {
+            return daemon;
+        }
+
+        /** Get socket path of daemon to connect to. */
+        public String getConnect() {
+            return connect;
+        }
+
+        /** Get watch. */
+        public Boolean getWatch() {
+            return watch;
+        }
+
+        /** Get incremental. */
+        public Boolean getIncremental() {
+            return incremental;
+        }
+
+        /** Get render cache dir. */
+        public String getCacheDir() {
+            return cacheDir;
+        }
+
+        /** Get render cache maximum size in MB. */
+        public Integer getCacheSize() {
+            return cacheSize;
+        }
+
+        /** Get fsync. */
+        public Boolean getFsync() {
+            return fsync;
+        }
+
+        /** Get shell session. */
+        public Boolean getShellSession() {
+            return shellSession;
+        }
+
+        /** Get compact exports. */
+        public Boolean getCompactExports() {
+            return compactExports;
+        }
+
+        /** Get maximum config page size in MB. */
+        public Integer getMaxPageSize() {
+            return maxPageSize;
+        }
     }
 
     /** Build argument parser. */
@@ -110,25 +265,70 @@ public class ArgParser {
         argumentParser.addArgument("-c", "--configs")
             .help("The configs(s) used to source the variables from. "
                 + "Multiple args to flag result in overrides from "
-                + "left to right.")
-            .required(true)
+                + "left to right. Required unless running as daemon.")
             .nargs("+");
         argumentParser.addArgument("-o", "--overrides")
             .help("Override individual variables, or indeed add some.")
             .required(false)
             .nargs("+");
         argumentParser.addArgument("-d", "--destinations")
-            .help("Specifies which files to read and where to write them to.")
-            .required(true);
+            .help("Specifies which files to read and where to write them to. "
+                + "Required unless running as daemon.");
         argumentParser.addArgument("-e", "--exports")
-            .help("Specifies which path to write exports to.")
-            .required(true);
+            .help("Specifies which path to write exports to. "
+                + "Required unless running as daemon.");
         argumentParser.addArgument("-j", "--varsJson")
             .help("Vars JSON to build on (use to chain JVarler).");
         argumentParser.addArgument("-p", "--allowParallel")
-            .help("Allow parallelisation of destination rendering (default=true).")
+            .help("Allow parallelisation of page and destination rendering (default=true).")
+            .type(Boolean.class)
             .setDefault(true)
             .required(false);
+        argumentParser.addArgument("--jobs")
+            .help("Number of render threads if parallel, at least 1 (default=available processors).")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .required(false);
+        argumentParser.addArgument("-g", "--graphResolution")
+            .help("Resolve references once each in dependency order, fail on cycles (default=false).")
+            .type(Boolean.class)
+            .setDefault(false)
+            .required(false);
+        argumentParser.addArgument("--daemon")
+            .help("Run as daemon, keep a warm engine listening on this unix domain socket.")
+            .required(false);
+        argumentParser.addArgument("--connect")
+            .help("Forward this invocation to a daemon listening on this unix domain socket.")
+            .required(false);
+        argumentParser.addArgument("--watch")
+            .help("Keep running, re-render on changes to configs, destinations and templates.")
+            .action(Arguments.storeTrue());
+        argumentParser.addArgument("--incremental")
+            .help("Skip destinations whose template and read variables are unchanged since last run. "
+                + "Tracked in a manifest next to the exports file.")
+            .action(Arguments.storeTrue());
+        argumentParser.addArgument("--cacheDir")
+            .help("Cache rendered outputs in this dir, reused across runs (and branches, overrides).")
+            .required(false);
+        argumentParser.addArgument("--cacheSize")
+            .help("Maximum render cache size in MB, least recently used outputs are evicted (default=512).")
+            .type(Integer.class)
+            .setDefault(512)
+            .required(false);
+        argumentParser.addArgument("--fsync")
+            .help("Sync outputs to disk before moving them in place.")
+            .action(Arguments.storeTrue());
+        argumentParser.addArgument("--maxPageSize")
+            .help("Fail on config pages larger than this many MB (default=0, unlimited).")
+            .type(Integer.class)
+            .setDefault(0)
+            .required(false);
+        argumentParser.addArgument("--compactExports")
+            .help("Write exports without whitespace (o/w pretty printed).")
+            .action(Arguments.storeTrue());
+        argumentParser.addArgument("--shellSession")
+            .help("Run shells in long running bash sessions rather than a new bash per shell.")
+            .action(Arguments.storeTrue());
         return argumentParser;
     }
 
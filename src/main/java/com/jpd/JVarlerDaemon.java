@@ -0,0 +1,280 @@
+package com.jpd;
+
+import com.hubspot.jinjava.Jinjava;
+import com.jpd.jinjava.MyJinjavaInstanceFactory;
+import com.jpd.jinjava.TemplateCache;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** JVarler daemon. Keeps a warm engine (jinjava instance, template
+ * cache, JIT) around and serves invocations forwarded by clients
+ * over a unix domain socket. Saves JVM startup, class loading and
+ * warmup per invocation.
+ * <p>
+ * Requests are served one at a time. Relative paths are resolved
+ * against the working directory the client sends, so clients may run
+ * from any directory. Failures (including errors, e.g. a stack overflow
+ * rendering a deeply nested template) are reported to the client, the
+ * daemon keeps serving.
+ * <p>
+ * Protocol, all strings as length prefixed UTF-8:
+ * <ul>
+ *     <li>Request: working dir, number of args, args.</li>
+ *     <li>Response: any number of log frames (`L` + line), then an
+ *     exit frame (`X` + int status).</li>
+ * </ul>
+ */
+public class JVarlerDaemon {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(JVarlerDaemon.class);
+
+    /** Log line frame. */
+    private static final byte FRAME_LOG = 'L';
+
+    /** Exit status frame. */
+    private static final byte FRAME_EXIT = 'X';
+
+    /** Socket path. */
+    private final Path socketPath;
+
+    /** Warm jinjava instance, shared across requests. */
+    private final Jinjava jinjava = MyJinjavaInstanceFactory.newInstance();
+
+    /** Warm template cache, shared across requests. */
+    private final TemplateCache templateCache = new TemplateCache(jinjava);
+
+    /** Constructor. */
+    public JVarlerDaemon(String socketPath) {
+        this.socketPath = Path.of(socketPath).toAbsolutePath();
+    }
+
+    /** Serve requests until killed. */
+    public void serve() {
+        try {
+            // Remove any stale socket left behind by a previous daemon.
+            Files.deleteIfExists(socketPath);
+            try (ServerSocketChannel server = openServer()) {
+                server.bind(unixAddress(socketPath));
+                Runtime.getRuntime().addShutdownHook(new Thread(this::deleteSocket));
+                log.info(f("Daemon listening on: %s", socketPath));
+                while (true) {
+                    try (SocketChannel channel = server.accept()) {
+                        handle(channel);
+                    } catch (IOException | RuntimeException ex) {
+                        log.warning(f("Failed serving request: %s", ex.getMessage()));
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Handle a single request. */
+    private void handle(SocketChannel channel) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        String workingDir = readString(in);
+        int count = in.readInt();
+        String[] inputArgs = new String[count];
+        for (int i = 0; i < count; i++) {
+            inputArgs[i] = readString(in);
+        }
+
+        // Stream logs back to client while running.
+        long start = System.nanoTime();
+        Handler handler = new StreamingHandler(out);
+        Logger root = Logger.getLogger("");
+        root.addHandler(handler);
+        int status = 0;
+        try {
+            // Resolve relative paths against the client's working dir.
+            JVarlerMain.run(ArgParser.parseArgs(inputArgs).withWorkingDir(workingDir), () -> jinjava, templateCache);
+        } catch (RuntimeException ex) {
+            log.severe(f("Failed: %s", ex.getMessage()));
+            status = 1;
+        } catch (Throwable ex) {
+            // E.g. a stack overflow, don't let it take the daemon down.
+            log.severe(f("Failed: %s", ex));
+            status = 1;
+        } finally {
+            root.removeHandler(handler);
+        }
+        log.info(f("Served request in %dms (status=%d).", (System.nanoTime() - start) / 1_000_000, status));
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(status);
+        out.flush();
+    }
+
+    /** Helper: delete socket file. */
+    private void deleteSocket() {
+        try {
+            Files.deleteIfExists(socketPath);
+        } catch (IOException ex) {
+            // Ignore, shutting down.
+        }
+    }
+
+    /** Log handler streaming formatted records to a client. */
+    private static class StreamingHandler extends Handler {
+
+        /** Client output. */
+        private final DataOutputStream out;
+
+        /** Constructor. */
+        private StreamingHandler(DataOutputStream out) {
+            this.out = out;
+            setFormatter(new SimpleFormatter());
+        }
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            try {
+                out.writeByte(FRAME_LOG);
+                writeString(out, getFormatter().format(record));
+                out.flush();
+            } catch (IOException ex) {
+                // Client went away, nothing to stream to.
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Thin client. Forwards an invocation to a daemon. */
+    public static class Client {
+
+        /** Private constructor. */
+        private Client() {
+        }
+
+        /** Forward args (minus `--connect`) and stream back logs.
+         * Returns the daemon's exit status.
+         */
+        public static int forward(String socketPath, String[] inputArgs) {
+            List<String> forwarded = new ArrayList<>();
+            for (int i = 0; i < inputArgs.length; i++) {
+                if (inputArgs[i].equals("--connect")) {
+                    i++;
+                    continue;
+                }
+                if (inputArgs[i].startsWith("--connect=")) {
+                    continue;
+                }
+                forwarded.add(inputArgs[i]);
+            }
+            try (SocketChannel channel = openClient()) {
+                channel.connect(unixAddress(Path.of(socketPath).toAbsolutePath()));
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+                writeString(out, System.getProperty("user.dir"));
+                out.writeInt(forwarded.size());
+                for (String arg : forwarded) {
+                    writeString(out, arg);
+                }
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                while (true) {
+                    byte frame = in.readByte();
+                    if (frame == FRAME_LOG) {
+                        System.err.print(readString(in));
+                    } else if (frame == FRAME_EXIT) {
+                        return in.readInt();
+                    } else {
+                        throw new RuntimeException(f("Unexpected frame from daemon: %d", frame));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /** Helper: write length prefixed UTF-8 string. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Helper: read length prefixed UTF-8 string. */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Unix domain socket support is looked up reflectively, it's
+     * only available from Java 16 while we compile against Java 11.
+     */
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException ex) {
+            throw new RuntimeException("Daemon mode requires Java 16+ (unix domain sockets).", ex);
+        }
+    }
+
+    /** Open a unix domain server socket channel. */
+    private static ServerSocketChannel openServer() {
+        try {
+            return (ServerSocketChannel) ServerSocketChannel.class
+                .getMethod("open", ProtocolFamily.class)
+                .invoke(null, unixFamily());
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Daemon mode requires Java 16+ (unix domain sockets).", ex);
+        }
+    }
+
+    /** Open a unix domain client socket channel. */
+    private static SocketChannel openClient() {
+        try {
+            return (SocketChannel) SocketChannel.class
+                .getMethod("open", ProtocolFamily.class)
+                .invoke(null, unixFamily());
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Daemon mode requires Java 16+ (unix domain sockets).", ex);
+        }
+    }
+
+    /** Unix domain socket address for path. */
+    private static SocketAddress unixAddress(Path path) {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", Path.class)
+                .invoke(null, path);
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Daemon mode requires Java 16+ (unix domain sockets).", ex);
+        }
+    }
+}
@@ -1,17 +1,23 @@
 package com.jpd;
 
+import com.hubspot.jinjava.Jinjava;
 import com.jpd.jinjava.MyJinjavaInstanceFactory;
+import com.jpd.jinjava.TemplateCache;
 import com.jpd.jvarler.DestinationRenderer;
 import com.jpd.jvarler.ConfigRenderer;
+import com.jpd.jvarler.ConfigSnapshot;
+import com.jpd.jvarler.ExportsWriter;
 import com.jpd.utils.Config;
+import com.jpd.utils.Helpers;
 import com.jpd.utils.JVarlerUtils;
 import com.jpd.utils.MetaFieldCollection;
 
+import java.nio.file.Path;
 import java.util.List;
 
 import static com.jpd.utils.JVarlerUtils.ensureFileExists;
+import static com.jpd.utils.JVarlerUtils.f;
 import static com.jpd.utils.JVarlerUtils.handleOverrides;
-import static com.jpd.utils.JVarlerUtils.writeExports;
 
 /** Java implementation of varler leveraging jinjava as underlying.
  * It is a subset of jinja2 as available in jinjava, but much faster,
@@ -23,29 +29,92 @@ public class JVarlerMain {
     /** Meta key for overrides. */
     private final static String META_KEY_OVERRIDES = "overrides";
 
+    /** Render manifest (incremental rendering) suffix, appended to exports path. */
+    private final static String MANIFEST_SUFFIX = ".manifest";
+
+    /** Output manifest suffix, appended to exports path. */
+    private final static String OUTPUT_MANIFEST_SUFFIX = ".outputs";
+
     /** Private constructor. */
     private JVarlerMain() {
     }
 
-    /** Actual implementation. */
+    /** Entry point. Runs locally, as daemon, or as a client to a daemon. */
     public static void main(String[] inputArgs) {
-        MetaFieldCollection metaFields;
 
         // Parse input args.
         ArgParser.Args args = ArgParser.parseArgs(inputArgs);
 
+        if (!args.getDaemon().isEmpty()) {
+            new JVarlerDaemon(args.getDaemon()).serve();
+            return;
+        }
+        if (!args.getConnect().isEmpty()) {
+            System.exit(JVarlerDaemon.Client.forward(args.getConnect(), inputArgs));
+        }
+        Jinjava jinjava = MyJinjavaInstanceFactory.newInstance();
+        if (args.getWatch()) {
+            new JVarlerWatcher(args, jinjava).watch();
+            return;
+        }
+        run(args, () -> jinjava, new TemplateCache(jinjava));
+    }
+
+    /** Actual implementation. Jinjava instances and template cache
+     * are passed in, so they can be kept warm across runs.
+     */
+    public static void run(
+        ArgParser.Args args, Helpers.IProducer<Jinjava> jinjavaInstanceFactory, TemplateCache templateCache) {
+        run(args, jinjavaInstanceFactory, templateCache, false);
+    }
+
+    /** Actual implementation. If {@code skipUnchanged} (watch mode),
+     * no unchanged outputs are written and binding reads are tracked.
+     * Returns the destination renderer used, e.g. for re-rendering.
+     */
+    public static DestinationRenderer run(
+        ArgParser.Args args, Helpers.IProducer<Jinjava> jinjavaInstanceFactory, TemplateCache templateCache,
+        boolean skipUnchanged) {
+        Config config = renderConfig(args, jinjavaInstanceFactory, templateCache);
+
+        // Load destinations file, render, write file(s).
+        DestinationRenderer destinationRenderer = DestinationRenderer.Builder.newInstance()
+            .withJinjavaInstanceFactory(jinjavaInstanceFactory)
+            .withTemplateCache(templateCache)
+            .skipUnchanged(skipUnchanged)
+            .trackReads(skipUnchanged)
+            .withOutputManifestPath(args.getExports() + OUTPUT_MANIFEST_SUFFIX)
+            .fsync(args.getFsync())
+            .shellSession(args.getShellSession())
+            .withWorkingDir(args.getWorkingDir().isEmpty() ? null : args.getWorkingDir())
+            .withManifestPath(args.getIncremental() ? args.getExports() + MANIFEST_SUFFIX : null)
+            .withTemplateInputPath(args.getDestinations())
+            .withBindings(config.getMap())
+            .allowParallel(args.getAllowParallel())
+            .withRenderCache(
+                args.getCacheDir().isEmpty() ? null : args.getCacheDir(), args.getCacheSize() * 1024L * 1024L)
+            .withJobs(args.getJobs())
+            .build();
+        destinationRenderer.render();
+
+        writeExports(args, config);
+        return destinationRenderer;
+    }
+
+    /** Render the final config, including meta fields. */
+    public static Config renderConfig(
+        ArgParser.Args args, Helpers.IProducer<Jinjava> jinjavaInstanceFactory, TemplateCache templateCache) {
+        MetaFieldCollection metaFields;
+
+        // Not enforced by arg parser since daemons don't need these.
+        requireArg(!args.getConfigs().isEmpty(), "-c/--configs");
+        requireArg(!args.getDestinations().isEmpty(), "-d/--destinations");
+        requireArg(!args.getExports().isEmpty(), "-e/--exports");
+
         // Check files actually exist.
         args.getConfigs().forEach(JVarlerUtils::ensureFileExists);
         ensureFileExists(args.getDestinations());
 
-        // NB: in principle we can extend this, however,
-        // in the previous implementation this never did
-        // get used. Right now, this will fail for multiple
-        // configs.
-        if (args.getConfigs().size() > 1) {
-            throw new RuntimeException("Only single configs supported for now.");
-        }
-
         // Vars JSON is used to chain JVarler invocations.
         // I.e. use an exports file from a previous invocation.
         String varsJson = args.getVarsJson();
@@ -64,10 +133,14 @@ public class JVarlerMain {
         // however, this never did see usage.
         List<String> overrides = args.getOverrides();
         ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
-            .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+            .withJinjavaInstanceFactory(jinjavaInstanceFactory)
+            .withTemplateCache(templateCache)
             .withOverrides(handleOverrides(overrides))
             .withVarsJson(args.getVarsJson())
+            .withGraphResolution(args.getGraphResolution())
             .withConfigs(args.getConfigs())
+            .withMaxPageSize(args.getMaxPageSize() * 1024L * 1024L)
+            .withAllowParallel(args.getAllowParallel())
             .build();
         configRenderer.render();
 
@@ -75,17 +148,23 @@ public class JVarlerMain {
         Config config = configRenderer.getOutput();
         metaFields.put(META_KEY_OVERRIDES, String.join(" ", overrides));
         config.includeMetaFields(metaFields);
+        return config;
+    }
 
-        // Load destinations file, render, write file(s).
-        DestinationRenderer destinationRenderer = DestinationRenderer.Builder.newInstance()
-            .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
-            .withTemplateInputPath(args.getDestinations())
-            .withBindings(config.getMap())
-            .allowParallel(true)
-            .build();
-        destinationRenderer.render();
+    /** Write final config (including shell outputs stored) to "exports"
+     * file, along with its snapshot.
+     */
+    public static void writeExports(ArgParser.Args args, Config config) {
+        String exportsHash = new ExportsWriter(args.getCompactExports(), args.getExports() + OUTPUT_MANIFEST_SUFFIX)
+            .write(args.getExports(), config.getMap());
+        ConfigSnapshot.write(
+            Path.of(args.getExports() + ConfigSnapshot.SNAPSHOT_SUFFIX), config.getMap(), exportsHash);
+    }
 
-        // Write final config to "exports" file.
-        writeExports(args.getExports(), config.getMap());
+    /** Helper: fail on missing required argument. */
+    private static void requireArg(boolean present, String name) {
+        if (!present) {
+            throw new RuntimeException(f("Missing required argument: %s", name));
+        }
     }
 }
@@ -0,0 +1,156 @@
+package com.jpd;
+
+import com.hubspot.jinjava.Jinjava;
+import com.jpd.jinjava.TemplateCache;
+import com.jpd.jvarler.DestinationRenderer;
+import com.jpd.utils.Config;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.f;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/** Watch mode. Renders once, then keeps running and re-renders on
+ * changes:
+ * <ul>
+ *     <li>A changed template re-renders only destinations using it.
+ *     Shells are not re-run.</li>
+ *     <li>A changed config, vars json or destinations file re-renders
+ *     the config, then only destinations whose binding reads changed.
+ *     Shells are not re-run, their outputs are reused, unless the
+ *     shells themselves changed.</li>
+ * </ul>
+ * Only outputs that actually changed are written.
+ */
+public class JVarlerWatcher {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(JVarlerWatcher.class);
+
+    /** Wait this long for more events before acting (editors tend
+     * to write files in several steps).
+     */
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    /** Parsed args. */
+    private final ArgParser.Args args;
+
+    /** Jinjava instance, shared across runs. */
+    private final Jinjava jinjava;
+
+    /** Template cache, shared across runs. */
+    private final TemplateCache templateCache;
+
+    /** Watched directories by key. */
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    /** Destination renderer of last full run. */
+    private DestinationRenderer destinationRenderer;
+
+    /** Constructor. */
+    public JVarlerWatcher(ArgParser.Args args, Jinjava jinjava) {
+        this.args = args;
+        this.jinjava = jinjava;
+        this.templateCache = new TemplateCache(jinjava);
+    }
+
+    /** Render, then watch until killed. */
+    public void watch() {
+        destinationRenderer = JVarlerMain.run(args, () -> jinjava, templateCache, true);
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            Set<Path> inputs = getInputs();
+            registerAll(watchService, inputs);
+            registerAll(watchService, destinationRenderer.getSources());
+            log.info(f("Watching %d directories for changes.", watchedDirs.size()));
+
+            while (true) {
+                Set<Path> changed = new HashSet<>();
+                WatchKey key = watchService.take();
+                do {
+                    collectChanged(key, changed);
+                    key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                try {
+                    if (changed.stream().anyMatch(inputs::contains)) {
+                        log.info("Inputs changed, re-rendering.");
+                        Config config = JVarlerMain.renderConfig(args, () -> jinjava, templateCache);
+                        if (destinationRenderer.rebind(config.getMap())) {
+                            JVarlerMain.writeExports(args, config);
+                        } else {
+                            destinationRenderer = JVarlerMain.run(args, () -> jinjava, templateCache, true);
+                        }
+                    } else {
+                        Set<Path> sources = destinationRenderer.getSources();
+                        sources.retainAll(changed);
+                        if (sources.isEmpty()) {
+                            continue;
+                        }
+                        log.info(f("Templates changed: %s", sources));
+                        destinationRenderer.rerender(sources);
+                    }
+                } catch (RuntimeException ex) {
+                    // Keep watching, the next save might fix it.
+                    log.severe(f("Failed re-rendering: %s", ex.getMessage()));
+                }
+
+                // Destinations may have introduced new templates.
+                registerAll(watchService, destinationRenderer.getSources());
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Get (normalised) input paths requiring a full re-render. */
+    private Set<Path> getInputs() {
+        Set<Path> inputs = new HashSet<>();
+        args.getConfigs().forEach(x -> inputs.add(normalise(x)));
+        inputs.add(normalise(args.getDestinations()));
+        if (!args.getVarsJson().isEmpty()) {
+            inputs.add(normalise(args.getVarsJson()));
+        }
+        return inputs;
+    }
+
+    /** Register parent directories of paths, if not already watched. */
+    private void registerAll(WatchService watchService, Set<Path> paths) throws IOException {
+        for (Path path : paths) {
+            Path dir = path.getParent();
+            if (dir != null && !watchedDirs.containsValue(dir)) {
+                watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+            }
+        }
+    }
+
+    /** Collect changed paths from key, reset key. */
+    private void collectChanged(WatchKey key, Set<Path> changed) {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir != null && event.context() instanceof Path) {
+                changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+            }
+        }
+        key.reset();
+    }
+
+    /** Helper: normalise a path. */
+    private static Path normalise(String path) {
+        return Path.of(path).toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,134 @@
+package com.jpd.jinjava;
+
+import com.hubspot.jinjava.interpret.Context;
+import com.hubspot.jinjava.objects.PyWrapper;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Records which binding paths a render actually reads, e.g.
+ * `{{ a.b.c }}` reads path [a, b, c]. Used for incremental
+ * rendering: a destination needs re-rendering only if the value
+ * at any of its read paths changed.
+ * <p>
+ * Maps are tracked per key looked up. Iterating a map (items,
+ * keys, values, dumping it as a whole) reads the map's path as
+ * a whole. Anything else (lists, strings, numbers) is read as
+ * a whole at its path. Map sizes (e.g. `length`, truthiness)
+ * are not tracked, Jinjava checks sizes on every lookup.
+ * <p>
+ * One tracker per render, not thread-safe.
+ */
+public class ReadTracker {
+
+    /** Paths read, in order of first read. */
+    private final Set<List<String>> reads = new LinkedHashSet<>();
+
+    /** Get paths read. */
+    public Set<List<String>> getReads() {
+        return Collections.unmodifiableSet(reads);
+    }
+
+    /** Record a read of {@code value} at {@code path}. Maps are
+     * wrapped to track nested lookups, rather than recorded.
+     */
+    private Object track(List<String> path, Object value) {
+        if (value instanceof Map && !(value instanceof PyWrapper)) {
+            return new TrackingMap(path, (Map<String, Object>) value, this);
+        }
+        reads.add(path);
+        return value;
+    }
+
+    /** Helper: child path. */
+    private static List<String> child(List<String> path, Object key) {
+        List<String> child = new ArrayList<>(path.size() + 1);
+        child.addAll(path);
+        child.add(String.valueOf(key));
+        return Collections.unmodifiableList(child);
+    }
+
+    /** Create a top level render context tracking reads. */
+    Context newContext(Context parent, Map<String, ?> bindings, Map<Context.Library, Set<String>> disabled) {
+        return new TrackingContext(parent, bindings, disabled, this);
+    }
+
+    /** Render context tracking top level lookups of bindings. Nested
+     * scopes (loops, macros, includes) fall through to this one.
+     * Anything not coming from bindings (e.g. variables set by the
+     * template itself) is passed through as is.
+     */
+    private static class TrackingContext extends Context {
+
+        /** My tracker. Unset while the super constructor runs. */
+        private final ReadTracker tracker;
+
+        /** Bindings rendered against. */
+        private final Map<String, ?> bindings;
+
+        /** Constructor. */
+        private TrackingContext(
+            Context parent, Map<String, ?> bindings,
+            Map<Library, Set<String>> disabled, ReadTracker tracker) {
+            super(parent, bindings, disabled);
+            this.tracker = tracker;
+            this.bindings = bindings;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Object value = super.get(key);
+            if (tracker == null || !(key instanceof String) || value != bindings.get(key)) {
+                return value;
+            }
+            return tracker.track(List.of((String) key), value);
+        }
+    }
+
+    /** Read-only map view tracking lookups. */
+    private static class TrackingMap extends AbstractMap<String, Object> {
+
+        /** Path of this map. */
+        private final List<String> path;
+
+        /** Underlying map. */
+        private final Map<String, Object> map;
+
+        /** My tracker. */
+        private final ReadTracker tracker;
+
+        /** Constructor. */
+        private TrackingMap(List<String> path, Map<String, Object> map, ReadTracker tracker) {
+            this.path = path;
+            this.map = map;
+            this.tracker = tracker;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return tracker.track(child(path, key), map.get(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            tracker.reads.add(child(path, key));
+            return map.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            tracker.reads.add(path);
+            return map.entrySet();
+        }
+    }
+}
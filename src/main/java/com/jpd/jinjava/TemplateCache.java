@@ -0,0 +1,298 @@
+package com.jpd.jinjava;
+
+import com.hubspot.jinjava.Jinjava;
+import com.hubspot.jinjava.JinjavaConfig;
+import com.hubspot.jinjava.interpret.Context;
+import com.hubspot.jinjava.interpret.FatalTemplateErrorsException;
+import com.hubspot.jinjava.interpret.JinjavaInterpreter;
+import com.hubspot.jinjava.interpret.TemplateError;
+import com.hubspot.jinjava.tree.Node;
+import com.jpd.utils.JVarlerUtils;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.jpd.utils.JVarlerUtils.f;
+import static com.jpd.utils.JVarlerUtils.j;
+import static java.nio.file.Files.readAllLines;
+
+/** Parse-once template cache. Templates are keyed by path, and
+ * re-read if the modification time or size of the file changed
+ * (size catches rewrites within the same timestamp tick, e.g. in
+ * watch mode). Each entry holds the cleaned template source
+ * and the parsed jinjava node tree, so a template looped over many
+ * destinations is read and parsed once per run.
+ * <p>
+ * Templates not read from files (config pages) are keyed by hash of
+ * their source instead, so unchanged pages are parsed once across
+ * daemon or watch iterations.
+ * <p>
+ * Safe to share across render threads.
+ */
+public class TemplateCache {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(TemplateCache.class);
+
+    /** My jinjava instance. Used for parsing and rendering. */
+    private final Jinjava jinjava;
+
+    /** Cached templates by (normalised) path. */
+    private final Map<Path, Template> templates = new ConcurrentHashMap<>();
+
+    /** Cached templates by hash of source. */
+    private final Map<String, Template> sources = new ConcurrentHashMap<>();
+
+    /** Maximum number of templates cached by source. Cleared once
+     * exceeded, old page versions don't pile up in long running engines.
+     */
+    private static final int MAX_SOURCES = 1024;
+
+    /** Cache hits. */
+    private final LongAdder hits = new LongAdder();
+
+    /** Cache misses (i.e. reads and parses). */
+    private final LongAdder misses = new LongAdder();
+
+    /** Tags pulling in other templates. */
+    private static final Pattern DEPENDENCY_TAG_PATTERN =
+        Pattern.compile("\\{%-?\\s*(include|import|from|extends)\\b");
+
+    /** A cached template. */
+    public static class Template {
+
+        /** Modification time of the underlying file when read, null
+         * if not read from a file.
+         */
+        private final FileTime modified;
+
+        /** Size of the underlying file when read, -1 if not read from
+         * a file.
+         */
+        private final long size;
+
+        /** Cleaned template source (comments and blank lines removed). */
+        private final String source;
+
+        /** Parsed node tree. */
+        private final Node root;
+
+        /** Hash of cleaned source. */
+        private final String hash;
+
+        /** Does the template pull in other templates? */
+        private final boolean dependencies;
+
+        /** Constructor. */
+        private Template(FileTime modified, long size, String source, Node root) {
+            this(modified, size, source, root, JVarlerUtils.getHash(source.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /** Constructor, hash of source known. */
+        private Template(FileTime modified, long size, String source, Node root, String hash) {
+            this.modified = modified;
+            this.size = size;
+            this.source = source;
+            this.root = root;
+            this.hash = hash;
+            this.dependencies = DEPENDENCY_TAG_PATTERN.matcher(source).find();
+        }
+
+        /** Was read from a file with these attributes? */
+        private boolean isFreshFor(BasicFileAttributes attributes) {
+            return modified != null && modified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+        }
+
+        /** Get cleaned source. */
+        public String getSource() {
+            return source;
+        }
+
+        /** Get parsed node tree. */
+        public Node getRoot() {
+            return root;
+        }
+
+        /** Get hash of cleaned source. */
+        public String getHash() {
+            return hash;
+        }
+
+        /** Does the template pull in other templates? If so, its
+         * hash doesn't cover everything it renders.
+         */
+        public boolean hasDependencies() {
+            return dependencies;
+        }
+    }
+
+    /** Constructor. */
+    public TemplateCache(Jinjava jinjava) {
+        this.jinjava = jinjava;
+    }
+
+    /** Get template from cache, read and parse on miss or if
+     * the underlying file was modified since last read.
+     */
+    public Template get(String inputPath) {
+        Path path = Path.of(inputPath).toAbsolutePath().normalize();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        // Plain lookup first, hits (the common case) don't lock.
+        Template cached = templates.get(path);
+        if (cached != null && cached.isFreshFor(attributes)) {
+            hits.increment();
+            return cached;
+        }
+        // Miss or modified. Compute, so concurrent misses load once.
+        return templates.compute(path, (key, current) -> {
+            if (current != null && current.isFreshFor(attributes)) {
+                hits.increment();
+                return current;
+            }
+            misses.increment();
+            return load(key, attributes);
+        });
+    }
+
+    /** Get template of {@code source} from cache, parse on miss. */
+    public Template getSource(String source) {
+        String hash = JVarlerUtils.getHash(source.getBytes(StandardCharsets.UTF_8));
+        Template cached = sources.get(hash);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        if (sources.size() >= MAX_SOURCES) {
+            sources.clear();
+        }
+        return sources.computeIfAbsent(hash, key -> new Template(null, -1, source, parse(source), key));
+    }
+
+    /** Read, render and return template from path. */
+    public String render(String inputPath, Map<String, ?> bindings) {
+        return render(get(inputPath), bindings);
+    }
+
+    /** Render a cached template against bindings. Mirrors
+     * {@code Jinjava.render}, minus the parsing.
+     */
+    public String render(Template template, Map<String, ?> bindings) {
+        return render(template, bindings, null);
+    }
+
+    /** Render a cached template against bindings, recording binding
+     * reads to {@code tracker} (if set).
+     */
+    public String render(Template template, Map<String, ?> bindings, ReadTracker tracker) {
+        JinjavaConfig config = jinjava.getGlobalConfig();
+        Context context = tracker != null
+            ? tracker.newContext(jinjava.getGlobalContextCopy(), bindings, config.getDisabled())
+            : new Context(jinjava.getGlobalContextCopy(), bindings, config.getDisabled());
+        JinjavaInterpreter interpreter = config.getInterpreterFactory().newInstance(jinjava, context, config);
+        JinjavaInterpreter.pushCurrent(interpreter);
+        try {
+            String output = interpreter.render(template.root);
+            throwOnFatal(template.source, interpreter.getErrorsCopy());
+            return output;
+        } finally {
+            JinjavaInterpreter.popCurrent();
+        }
+    }
+
+    /** Fingerprint of jinjava version and config. Anything changing
+     * how templates render should change the fingerprint, so it can
+     * be used when caching rendered outputs.
+     */
+    public String getConfigFingerprint() {
+        JinjavaConfig config = jinjava.getGlobalConfig();
+        return j("|",
+            String.valueOf(Jinjava.class.getPackage().getImplementationVersion()),
+            String.valueOf(config.getCharset()),
+            String.valueOf(config.getLocale()),
+            String.valueOf(config.getTimeZone()),
+            String.valueOf(config.isTrimBlocks()),
+            String.valueOf(config.isLstripBlocks()),
+            String.valueOf(config.isFailOnUnknownTokens()),
+            String.valueOf(config.isNestedInterpretationEnabled()),
+            String.valueOf(config.isIterateOverMapKeys()),
+            String.valueOf(config.getMaxOutputSize()),
+            String.valueOf(config.getDisabled()),
+            config.getExecutionMode().getClass().getName(),
+            String.valueOf(config.getLegacyOverrides().isUsePyishObjectMapper()),
+            String.valueOf(config.getLegacyOverrides().isEvaluateMapKeys()),
+            String.valueOf(config.getLegacyOverrides().isIterateOverMapKeys()));
+    }
+
+    /** Get number of cache hits. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Get number of cache misses. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Log hit/miss counters. */
+    public void logStats() {
+        log.info(f("Template cache: hits=%d misses=%d size=%d",
+            getHits(), getMisses(), templates.size() + sources.size()));
+    }
+
+    /** Read, clean and parse template. */
+    private Template load(Path path, BasicFileAttributes attributes) {
+        try {
+            // Jinja only in destinations and destination templates.
+            List<String> clean = new ArrayList<>();
+            for (String line : readAllLines(path)) {
+                String stripped = line.strip();
+                if (stripped.startsWith("#") || stripped.startsWith("\n") || stripped.equals("")) {
+                    // Ignore.
+                    continue;
+                }
+                clean.add(line);
+            }
+            String source = j("\n", clean.toArray(new String[0]));
+            return new Template(attributes.lastModifiedTime(), attributes.size(), source, parse(source));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Parse source into node tree. */
+    private Node parse(String source) {
+        JinjavaInterpreter interpreter = jinjava.newInterpreter();
+        Node root = interpreter.parse(source);
+        throwOnFatal(source, interpreter.getErrorsCopy());
+        return root;
+    }
+
+    /** Throw on any fatal errors, same as {@code Jinjava.render}. */
+    private static void throwOnFatal(String source, List<TemplateError> errors) {
+        List<TemplateError> fatalErrors = errors.stream()
+            .filter(error -> error.getSeverity() == TemplateError.ErrorType.FATAL)
+            .collect(Collectors.toList());
+        if (!fatalErrors.isEmpty()) {
+            throw new FatalTemplateErrorsException(source, fatalErrors);
+        }
+    }
+}
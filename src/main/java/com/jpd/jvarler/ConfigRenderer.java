@@ -1,30 +1,37 @@
 package com.jpd.jvarler;
 
 import com.hubspot.jinjava.Jinjava;
+import com.jpd.jinjava.TemplateCache;
 import com.jpd.serialiser.JSONSerialiser;
+import com.jpd.utils.ArrayRules;
 import com.jpd.utils.Config;
 import com.jpd.utils.Helpers;
+import com.jpd.utils.IndexedConfig;
 import com.jpd.utils.JVarlerUtils;
 import com.jpd.utils.LoggingUtils;
-import com.jpd.utils.Mapper;
-import org.json.JSONObject;
+import com.jpd.utils.ImmutableMapper;
+import com.jpd.utils.ImmutableMapper.Syntax;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.jpd.utils.Mapper.ArrayStrategy.APPEND;
 import static com.jpd.utils.Mapper.ArrayStrategy.REPLACE;
 import static com.jpd.utils.JVarlerUtils.f;
-import static com.jpd.utils.JVarlerUtils.j;
-import static java.nio.file.Files.readAllLines;
 
 /** The reader is responsible for all config reading and rendering. */
 public class ConfigRenderer implements IRenderer<Config> {
@@ -32,8 +39,8 @@ public class ConfigRenderer implements IRenderer<Config> {
     /** A logger. */
     private final Logger log = LoggingUtils.getLogger(ConfigRenderer.class);
 
-    /** My jinjava instance. */
-    private final Jinjava jinjava;
+    /** Template cache, pages are parsed once per distinct content. */
+    private final TemplateCache templateCache;
 
     /** Used for chain jvarler invocations. In particular,
      * use exports.json from previous invocation here to build
@@ -44,11 +51,21 @@ public class ConfigRenderer implements IRenderer<Config> {
     /** Holds the rendered pages. */
     private final List<Map<String, Object>> renderedPages = new ArrayList<>();
 
-    /** Holds the running config updated per page. */
-    private final HashMap<String, Object> runningConfig = new HashMap<>();
+    /** Holds the running config updated per page. Indexed by path,
+     * resolution and override checks look up flat paths.
+     */
+    private final IndexedConfig runningConfig = new IndexedConfig();
+
+    /** Holds the raw pages, mapped from configs. Per page number, the
+     * pages of all configs having that page, in config order.
+     */
+    private final Map<Integer, List<PageSplitter.Page>> rawPages = new HashMap<>();
 
-    /** Holds the raw pages as lists of lines. */
-    private final Map<Integer, List<String>> rawPages = new HashMap<>();
+    /** Paths (as map keys from root) of entries in the running
+     * config still holding unresolved references. Only these and
+     * any entries introduced by a page are resolved per page.
+     */
+    private final Set<List<String>> unresolvedPaths = new LinkedHashSet<>();
 
     /** The underlying resolver. */
     private final ValueResolver resolver = new ValueResolver();
@@ -57,14 +74,30 @@ public class ConfigRenderer implements IRenderer<Config> {
     private final JVarlerUtils.Overrides overrides;
 
     /** Underlying mapper. */
-    private final Mapper mapper = new Mapper();
+    private final ImmutableMapper mapper = new ImmutableMapper();
+
+    /** Top level key declaring array strategies by path, on page 0. */
+    private static final String ARRAYS_KEY = "_arrays";
+
+    /** Array strategies by path, as declared on page 0. Lists are
+     * appended to by default.
+     */
+    private ArrayRules arrayRules = ArrayRules.of(APPEND);
 
-    /** Any config paths. Limited to one, but kept as a list
-     * for ease of extension. Previous implementation did support
-     * multiple configs.
+    /** Any config paths. Page n of all configs is merged left to
+     * right into one (effective) page n.
      */
     private final List<String> configs;
 
+    /** Maximum page size in bytes, unlimited if not positive. */
+    private final long maxPageSize;
+
+    /** Render independent pages concurrently. */
+    private final boolean allowParallel;
+
+    /** Yaml loader per thread, reused across pages. */
+    private static final ThreadLocal<Yaml> yaml = ThreadLocal.withInitial(Yaml::new);
+
     /** The final config. */
     private HashMap<String, Object> finalConfig;
 
@@ -74,6 +107,9 @@ public class ConfigRenderer implements IRenderer<Config> {
         /** Jinjava instance factory. */
         private Helpers.IProducer<Jinjava> jinjavaInstanceFactory;
 
+        /** Template cache. Optional. */
+        private TemplateCache templateCache;
+
         /** Any overrides. */
         private JVarlerUtils.Overrides overrides;
 
@@ -82,6 +118,15 @@ public class ConfigRenderer implements IRenderer<Config> {
 
         private String varsJson;
 
+        /** Resolve values using a reference graph. */
+        private boolean graphResolution;
+
+        /** Maximum page size in bytes, unlimited if not positive. */
+        private long maxPageSize;
+
+        /** Render independent pages concurrently. */
+        private boolean allowParallel;
+
         /** Private constructor. */
         private Builder() {
         }
@@ -96,7 +141,11 @@ public class ConfigRenderer implements IRenderer<Config> {
             Objects.requireNonNull(configs);
             Objects.requireNonNull(overrides);
             Objects.requireNonNull(jinjavaInstanceFactory);
-            return new ConfigRenderer(configs, overrides, jinjavaInstanceFactory.get(), varsJson);
+            TemplateCache myTemplateCache = templateCache != null
+                ? templateCache
+                : new TemplateCache(jinjavaInstanceFactory.get());
+            return new ConfigRenderer(
+                configs, overrides, myTemplateCache, varsJson, graphResolution, maxPageSize, allowParallel);
         }
 
         /** Set jinjava instance factory. */
@@ -105,6 +154,12 @@ public class ConfigRenderer implements IRenderer<Config> {
             return this;
         }
 
+        /** Set template cache, e.g. to keep parsed pages across runs. */
+        public Builder withTemplateCache(TemplateCache templateCache) {
+            this.templateCache = templateCache;
+            return this;
+        }
+
         /** Set overrides. */
         public Builder withOverrides(JVarlerUtils.Overrides overrides) {
             this.overrides = overrides;
@@ -116,6 +171,26 @@ public class ConfigRenderer implements IRenderer<Config> {
             return this;
         }
 
+        /** Resolve values using a reference graph. */
+        public Builder withGraphResolution(boolean graphResolution) {
+            this.graphResolution = graphResolution;
+            return this;
+        }
+
+        /** Fail on config pages larger than {@code maxPageSize} bytes
+         * (unlimited if not positive).
+         */
+        public Builder withMaxPageSize(long maxPageSize) {
+            this.maxPageSize = maxPageSize;
+            return this;
+        }
+
+        /** Render pages not depending on each other concurrently. */
+        public Builder withAllowParallel(boolean allowParallel) {
+            this.allowParallel = allowParallel;
+            return this;
+        }
+
         /** Set configs. */
         public Builder withConfigs(List<String> configs) {
             this.configs = configs;
@@ -124,18 +199,27 @@ public class ConfigRenderer implements IRenderer<Config> {
     }
 
     /** Private constructor. */
-    private ConfigRenderer(List<String> configs, JVarlerUtils.Overrides overrides, Jinjava jinjava, String varsJson) {
+    private ConfigRenderer(
+        List<String> configs, JVarlerUtils.Overrides overrides, TemplateCache templateCache,
+        String varsJson, boolean graphResolution, long maxPageSize, boolean allowParallel) {
         this.overrides = overrides;
         this.varsJson = varsJson;
-        this.jinjava = jinjava;
+        this.templateCache = templateCache;
         this.configs = configs;
+        this.resolver.setGraphResolution(graphResolution);
+        this.maxPageSize = maxPageSize;
+        this.allowParallel = allowParallel;
     }
 
     /** Outside callable. Call and all is done. */
     @Override
     public void render() {
         handleVarsJson();
-        readlines(configs.get(0));
+        readConfigs();
+        if (allowParallel && rawPages.size() > 2) {
+            renderNextPage();
+            renderPagesConcurrently();
+        }
         while (hasNext()) {
             renderNextPage();
         }
@@ -147,50 +231,46 @@ public class ConfigRenderer implements IRenderer<Config> {
             return;
         }
         try {
-            log.info(f("Reading previous vars json from: %s", varsJson));
-            List<String> lines = readAllLines(Path.of(varsJson));
-            JSONObject jsonObject = new JSONObject(String.join("", lines));
-            JSONSerialiser jsonSerialiser = new JSONSerialiser();
-            Map<String, Object> update = (Map<String, Object>) jsonSerialiser
-                .fromJSONStringJackson(jsonObject.toString(), HashMap.class);
-            mapper.update(update, runningConfig);
+            long start = System.nanoTime();
+            Map<String, Object> update;
+            Path path = Path.of(varsJson);
+            Path snapshotPath = Path.of(varsJson + ConfigSnapshot.SNAPSHOT_SUFFIX);
+            ConfigSnapshot snapshot = null;
+            if (ConfigSnapshot.isSnapshot(path)) {
+                snapshot = ConfigSnapshot.open(path);
+            } else if (ConfigSnapshot.isSnapshot(snapshotPath)) {
+                // Only if written along with these exports.
+                ConfigSnapshot candidate = ConfigSnapshot.open(snapshotPath);
+                snapshot = candidate.isFreshFor(path) ? candidate : null;
+            }
+            if (snapshot != null) {
+                log.info(f("Reading previous config snapshot for: %s", varsJson));
+                update = snapshot.getMap();
+            } else {
+                log.info(f("Reading previous vars json from: %s", varsJson));
+                update = new JSONSerialiser().fromJSONStringJackson(Files.readString(path), HashMap.class);
+            }
+            log.info(f("Loaded previous config in %dms.", (System.nanoTime() - start) / 1_000_000));
+            mapper.update(update, runningConfig, APPEND);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
-    /** Reader lines from a path. Will populate raw pages. */
-    private void readlines(String inputPath) {
-        try {
-            List<String> lines = readAllLines(Path.of(inputPath));
-            List<String> page = new ArrayList<>();
-            int linesLen = lines.size();
-
-            int pageNo = 0;
-            int lineNo = 0;
-            while (lineNo < linesLen) {
-                if (!(rawPages.containsKey(pageNo))) {
-                    rawPages.put(pageNo, page);
-                }
-                String line = lines.get(lineNo++);
-                String stripped = line.strip();
-
-                // Ignore comments.
-                if (stripped.startsWith("#") || stripped.startsWith("\n") || stripped.equals("")) {
-                    continue;
-                }
-
-                // Indicates a new page starting.
-                if (line.equals("---")) {
-                    pageNo++;
-                    page = new ArrayList<>();
-                    continue;
-                }
-                page.add(line);
+    /** Read all configs, concurrently. Will populate raw pages. */
+    private void readConfigs() {
+        long start = System.nanoTime();
+        // Parallel stream keeps config order.
+        List<List<PageSplitter.Page>> pagesPerConfig = configs.parallelStream()
+            .map(config -> PageSplitter.split(config, maxPageSize))
+            .collect(Collectors.toList());
+        for (List<PageSplitter.Page> pages : pagesPerConfig) {
+            for (int pageNo = 0; pageNo < pages.size(); pageNo++) {
+                rawPages.computeIfAbsent(pageNo, x -> new ArrayList<>()).add(pages.get(pageNo));
             }
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
         }
+        log.info(f("Read %d config(s) in %dms, pages=%d.",
+            configs.size(), (System.nanoTime() - start) / 1_000_000, rawPages.size()));
     }
 
     /** Any pages remaining? */
@@ -198,25 +278,88 @@ public class ConfigRenderer implements IRenderer<Config> {
         return rawPages.size() > renderedPages.size();
     }
 
+    /** Render pages after page 0, concurrently as far as their
+     * dependencies (see {@code PageAnalysis}) allow. Pages are rendered
+     * in rounds, each round all pages whose dependencies are merged.
+     * Nothing is merged while a round renders (reading the running
+     * config), merging and resolution stay in page order.
+     */
+    private void renderPagesConcurrently() {
+        int pageCount = rawPages.size();
+        List<PageAnalysis> analyses = IntStream.range(0, pageCount).parallel()
+            .mapToObj(pageNo -> pageNo == 0 ? null : PageAnalysis.of(rawPages.get(pageNo)))
+            .collect(Collectors.toList());
+        Set<String> pendingKeys = unresolvedPaths.stream().map(path -> path.get(0)).collect(Collectors.toSet());
+        List<Set<Integer>> dependencies = PageAnalysis.getDependencies(analyses, pendingKeys);
+        log.info(f("Page dependencies: %s", PageAnalysis.describe(dependencies)));
+        log.info(f("Critical path: %d of %d pages.", PageAnalysis.getCriticalPath(dependencies), pageCount));
+
+        Map<Integer, List<Map<String, Object>>> loaded = new HashMap<>();
+        int rounds = 0;
+        while (hasNext()) {
+            int merged = renderedPages.size() - 1;
+            List<Integer> ready = new ArrayList<>();
+            for (int pageNo = merged + 1; pageNo < pageCount; pageNo++) {
+                if (!loaded.containsKey(pageNo) && dependencies.get(pageNo).stream().allMatch(x -> x <= merged)) {
+                    ready.add(pageNo);
+                }
+            }
+            loaded.putAll(ready.parallelStream().collect(Collectors.toMap(pageNo -> pageNo, this::loadPage)));
+            rounds++;
+            while (loaded.containsKey(renderedPages.size())) {
+                int pageNo = renderedPages.size();
+                mergePage(pageNo, loaded.remove(pageNo));
+            }
+        }
+        log.info(f("Rendered %d pages in %d round(s).", pageCount - 1, rounds));
+    }
+
     /** Render next (raw) page. */
     private void renderNextPage() {
         int pageNo = renderedPages.size();
+        mergePage(pageNo, loadPage(pageNo));
+    }
+
+    /** Load page, i.e. render (if not page 0) and parse the pages of
+     * all configs with that page number. Only reads the running config.
+     */
+    private List<Map<String, Object>> loadPage(int pageNo) {
         log.info(f("Rendering page %d.", pageNo));
-        List<String> rawPage = rawPages.get(pageNo);
-        if (rawPage == null) {
+        List<PageSplitter.Page> myRawPages = rawPages.get(pageNo);
+        if (myRawPages == null) {
             throw new RuntimeException("Null raw page found.");
         }
-        String content = j("\n", rawPage.toArray(new String[0]));
-        Map<String, Object> myPage;
-        Yaml yaml = new Yaml();
 
-        // No jinja on page 0.
-        if (pageNo > 0) {
-            content = jinjava.render(content, runningConfig);
+        // Load as yaml. No jinja on page 0, so parse in parallel,
+        // straight from the mapped configs.
+        if (pageNo == 0) {
+            return myRawPages.parallelStream()
+                .map(rawPage -> (Map<String, Object>) yaml.get().load(rawPage.newReader()))
+                .collect(Collectors.toList());
+        }
+        return myRawPages.stream()
+            .map(this::loadRenderedPage)
+            .collect(Collectors.toList());
+    }
+
+    /** Render page and load as yaml. Pages not using jinja at all go
+     * straight to yaml, o/w they're parsed once per content.
+     */
+    private Map<String, Object> loadRenderedPage(PageSplitter.Page rawPage) {
+        if (!rawPage.hasJinja()) {
+            log.fine("Static page, skipping jinja.");
+            return (Map<String, Object>) yaml.get().load(rawPage.newReader());
         }
+        TemplateCache.Template template = templateCache.getSource(rawPage.getText());
+        return (Map<String, Object>) yaml.get().load(templateCache.render(template, runningConfig));
+    }
 
-        // Load as yaml. Resolve. Update running bindings.
-        myPage = (Map<String, Object>) yaml.load(content);
+    /** Merge loaded page into the running config and resolve. */
+    private void mergePage(int pageNo, List<Map<String, Object>> loadedPages) {
+        if (pageNo == 0) {
+            arrayRules = takeArrayRules(loadedPages);
+        }
+        Map<String, Object> myPage = mergePages(loadedPages);
 
         // Zeroth page overrides only.
         if (pageNo == 0) {
@@ -230,9 +373,9 @@ public class ConfigRenderer implements IRenderer<Config> {
                     // The running config is set on page zero if we
                     // use a vars.json override. So we try both
                     // running config and first page.
-                    existingValue = mapper.get(runningConfig, x);
+                    existingValue = mapper.get(runningConfig, Syntax.DOTS, x);
                     if (existingValue == null) {
-                        existingValue = mapper.get(myPage, x);
+                        existingValue = mapper.get(myPage, Syntax.DOTS, x);
                     }
 
                     if (existingValue == null) {
@@ -259,12 +402,9 @@ public class ConfigRenderer implements IRenderer<Config> {
                     throw new RuntimeException(f("Failed during override checking: %s", failedOverrides));
                 }
 
-                // Any array overrides replace pre-existing values.
-                mapper.setArrayStrategy(REPLACE);
-                mapper.update(overrides.getNested(), myPage);
-
-                // O/w default treatment is to append.
-                mapper.setArrayStrategy(APPEND);
+                // Any array overrides replace pre-existing values, o/w
+                // default treatment is to append.
+                mapper.update(overrides.getNested(), myPage, REPLACE);
             }
         }
 
@@ -272,9 +412,24 @@ public class ConfigRenderer implements IRenderer<Config> {
         // self-referential resolution of varler syntax
         // and perform.
         resolver.clearLayers();
-        mapper.update(myPage, runningConfig);
+        mapper.update(myPage, runningConfig, arrayRules);
         resolver.addLayer(runningConfig);
-        resolver.resolveAll(runningConfig);
+
+        // Only resolve entries this page introduced plus any still
+        // unresolved (those may now succeed). Page 0 resolves all,
+        // since the running config may be pre-populated (vars json).
+        Set<List<String>> targets = new LinkedHashSet<>();
+        if (pageNo == 0) {
+            resolver.resolveAll(runningConfig);
+            collectEntryPaths(runningConfig, new ArrayList<>(), targets);
+        } else {
+            targets.addAll(unresolvedPaths);
+            collectEntryPaths(myPage, new ArrayList<>(), targets);
+            resolver.resolvePaths(runningConfig, targets);
+        }
+        int visited = updateUnresolvedPaths(targets);
+        log.info(f("Resolved page %d: entries=%d values visited=%d still unresolved=%d.",
+            pageNo, targets.size(), visited, unresolvedPaths.size()));
         renderedPages.add(myPage);
 
         // Set final config once done.
@@ -283,6 +438,133 @@ public class ConfigRenderer implements IRenderer<Config> {
         }
     }
 
+    /** Take array strategy declarations off (zeroth) pages. Later
+     * configs override earlier ones, path by path.
+     */
+    private ArrayRules takeArrayRules(List<Map<String, Object>> pages) {
+        Map<String, Object> declarations = new LinkedHashMap<>();
+        for (Map<String, Object> page : pages) {
+            Object declared = page != null ? page.remove(ARRAYS_KEY) : null;
+            if (declared instanceof Map) {
+                declarations.putAll((Map<String, Object>) declared);
+            } else if (declared != null) {
+                throw new RuntimeException(f("Expected strategies by path at %s: %s", ARRAYS_KEY, declared));
+            }
+        }
+        ArrayRules rules = ArrayRules.parse(declarations, Syntax.DOTS, APPEND);
+        if (!declarations.isEmpty()) {
+            log.info(f("Array strategies: %s", rules));
+        }
+        return rules;
+    }
+
+    /** Merge pages left to right. */
+    private Map<String, Object> mergePages(List<Map<String, Object>> pages) {
+        Map<String, Object> merged = null;
+        for (Map<String, Object> page : pages) {
+            if (merged == null) {
+                merged = page;
+            } else {
+                mapper.update(page, merged, arrayRules);
+            }
+        }
+        return merged;
+    }
+
+    /** Collect paths of all non-map entries in {@code map}. */
+    private static void collectEntryPaths(Map<String, Object> map, List<String> prefix, Set<List<String>> paths) {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            List<String> path = new ArrayList<>(prefix);
+            path.add(entry.getKey());
+            if (entry.getValue() instanceof Map) {
+                collectEntryPaths((Map<String, Object>) entry.getValue(), path, paths);
+            } else {
+                paths.add(path);
+            }
+        }
+    }
+
+    /** Update unresolved paths index after resolving {@code targets}.
+     * Returns the number of values visited.
+     */
+    private int updateUnresolvedPaths(Set<List<String>> targets) {
+        int visited = 0;
+        for (List<String> target : targets) {
+            unresolvedPaths.remove(target);
+            Object value = valueAt(runningConfig, target);
+            if (value instanceof Map) {
+                // Resolved to a collection, index entries within.
+                Set<List<String>> inner = new LinkedHashSet<>();
+                collectEntryPaths((Map<String, Object>) value, target, inner);
+                for (List<String> path : inner) {
+                    Object innerValue = valueAt(runningConfig, path);
+                    visited += countValues(innerValue);
+                    if (hasUnresolved(innerValue)) {
+                        unresolvedPaths.add(path);
+                    }
+                }
+            } else {
+                visited += countValues(value);
+                if (hasUnresolved(value)) {
+                    unresolvedPaths.add(target);
+                }
+            }
+        }
+        return visited;
+    }
+
+    /** Get value at {@code path}, null if missing. Walks the keys as
+     * they are, keys may hold dots.
+     */
+    private static Object valueAt(Map<String, Object> root, List<String> path) {
+        Object value = root;
+        for (String key : path) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<String, Object>) value).get(key);
+        }
+        return value;
+    }
+
+    /** Does value hold any unresolved references? */
+    private static boolean hasUnresolved(Object value) {
+        if (value instanceof String) {
+            return ((String) value).contains("${");
+        } else if (value instanceof List) {
+            for (Object element : (List<Object>) value) {
+                if (hasUnresolved(element)) {
+                    return true;
+                }
+            }
+        } else if (value instanceof Map) {
+            for (Object element : ((Map<String, Object>) value).values()) {
+                if (hasUnresolved(element)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Count (leaf) values. */
+    private static int countValues(Object value) {
+        if (value instanceof List) {
+            int count = 0;
+            for (Object element : (List<Object>) value) {
+                count += countValues(element);
+            }
+            return count;
+        } else if (value instanceof Map) {
+            int count = 0;
+            for (Object element : ((Map<String, Object>) value).values()) {
+                count += countValues(element);
+            }
+            return count;
+        }
+        return 1;
+    }
+
     private boolean tryFixOverride(String key, Object existingValue, Object override) {
         log.warning(f("Trying to fix override: %s", override));
         if (existingValue instanceof List) {
@@ -0,0 +1,221 @@
+package com.jpd.jvarler;
+
+import com.jpd.serialiser.SmileSerialiser;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Config snapshot. A binary (Smile encoded) copy of the exports,
+ * written next to them. Chained invocations (`-j`) load the snapshot
+ * instead of parsing the exports JSON.
+ * <p>
+ * Layout: magic, then the Smile encoded config, then the header, then
+ * a fixed size trailer. The header holds the hash of the exports
+ * written along with the snapshot. Snapshots are memory mapped.
+ * <p>
+ * Not indexed by path: chaining merges the whole previous config, so
+ * there are no subtrees to skip decoding.
+ */
+public class ConfigSnapshot {
+
+    /** A logger. */
+    private static final Logger log = LoggingUtils.getLogger(ConfigSnapshot.class);
+
+    /** Snapshot suffix, appended to the exports path. */
+    public static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    /** Serialiser. */
+    private static final SmileSerialiser serialiser = new SmileSerialiser();
+
+    /** Magic, first bytes of any snapshot. */
+    private static final byte[] MAGIC = "JVSNAP03".getBytes(StandardCharsets.US_ASCII);
+
+    /** Trailer: header offset, header length. */
+    private static final int TRAILER_SIZE = 2 * Long.BYTES;
+
+    /** Write buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Mapped snapshot. */
+    private final ByteBuffer buffer;
+
+    /** Length of the encoded config, following the magic. */
+    private final long configLength;
+
+    /** Content hash of exports when written, null if unknown. */
+    private final String exportsHash;
+
+    /** Header layout. Public fields for (de)serialisation. */
+    public static class Header {
+
+        /** Content hash of exports (see {@code OutputManifest}). */
+        public String exportsHash;
+    }
+
+    /** Constructor. */
+    private ConfigSnapshot(ByteBuffer buffer, long configLength, String exportsHash) {
+        this.buffer = buffer;
+        this.configLength = configLength;
+        this.exportsHash = exportsHash;
+    }
+
+    /** Is the file at {@code path} a snapshot? */
+    public static boolean isSnapshot(Path path) {
+        byte[] magic = new byte[MAGIC.length];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.read(ByteBuffer.wrap(magic)) == MAGIC.length && Arrays.equals(magic, MAGIC);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /** Open (map) the snapshot at {@code path}. */
+    public static ConfigSnapshot open(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAGIC.length + TRAILER_SIZE) {
+                throw new RuntimeException(f("Not a config snapshot: %s", path));
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new RuntimeException(f("Not a config snapshot: %s", path));
+            }
+            ByteBuffer trailer = mapped.duplicate().position((int) (size - TRAILER_SIZE));
+            long headerOffset = trailer.getLong();
+            long headerLength = trailer.getLong();
+            Header header = serialiser.read(slice(mapped, headerOffset, headerLength), Header.class);
+            return new ConfigSnapshot(mapped, headerOffset - MAGIC.length, header.exportsHash);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Was this snapshot written along with {@code exports} as they
+     * are now (same content hash)? Not judged by size and modification
+     * time, edits within the timestamp granularity would go unnoticed.
+     */
+    public boolean isFreshFor(Path exports) {
+        try (InputStream in = Files.newInputStream(exports);
+             OutputManifest.HashingOutputStream out =
+                 new OutputManifest.HashingOutputStream(OutputStream.nullOutputStream())) {
+            in.transferTo(out);
+            return isFreshFor(out.getHash());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /** Was this snapshot written along with exports of {@code hash}? */
+    public boolean isFreshFor(String hash) {
+        return exportsHash != null && exportsHash.equals(hash);
+    }
+
+    /** Get the whole config. */
+    public HashMap<String, Object> getMap() {
+        return serialiser.read(slice(buffer, MAGIC.length, configLength), HashMap.class);
+    }
+
+    /** Write snapshot of {@code config} to {@code path}, along with the
+     * exports just written, of {@code exportsHash}. Skipped if the
+     * snapshot on disk is still fresh (exports unchanged, so the config
+     * is too).
+     */
+    public static void write(Path path, Map<String, Object> config, String exportsHash) {
+        try {
+            if (exportsHash != null && Files.exists(path) && isSnapshot(path)
+                && open(path).isFreshFor(exportsHash)) {
+                log.fine(f("Snapshot unchanged: %s", path));
+                return;
+            }
+        } catch (RuntimeException ex) {
+            // Unreadable, overwrite.
+        }
+
+        Path temp = path.toAbsolutePath().resolveSibling(f(".%s.%s.jvtmp", path.getFileName(), UUID.randomUUID()));
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 CountingOutputStream out = new CountingOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))) {
+                out.write(MAGIC);
+                // Null values left out, same as in the exports.
+                serialiser.write(config, out, null, true);
+                Header header = new Header();
+                header.exportsHash = exportsHash;
+                long headerOffset = out.getCount();
+                serialiser.write(header, out);
+                long headerLength = out.getCount() - headerOffset;
+
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE)
+                    .putLong(headerOffset)
+                    .putLong(headerLength);
+                out.write(trailer.array());
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.info(f("Written snapshot to: %s", path));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ex) {
+                log.warning(f("Failed removing temp file: %s", temp));
+            }
+        }
+    }
+
+    /** Helper: slice of buffer. */
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        return buffer.duplicate().position((int) offset).limit((int) (offset + length));
+    }
+
+    /** Helper class: output stream counting bytes written. */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /** Bytes written. */
+        private long count;
+
+        /** Constructor. */
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        /** Get bytes written. */
+        private long getCount() {
+            return count;
+        }
+    }
+}
@@ -1,32 +1,45 @@
 package com.jpd.jvarler;
 
 import com.hubspot.jinjava.Jinjava;
+import com.jpd.jinjava.ReadTracker;
+import com.jpd.jinjava.TemplateCache;
 import com.jpd.utils.Helpers;
 import com.jpd.utils.LoggingUtils;
+import com.jpd.utils.ImmutableMapper;
+import com.jpd.utils.ImmutableMapper.MapPath;
+import com.jpd.utils.ImmutableMapper.Syntax;
 import com.jpd.utils.Mapper;
+import com.jpd.utils.OverlayMap;
 import com.jpd.utils.SimpleBashClient;
-import org.apache.commons.lang3.SerializationUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
 
-import static com.jpd.utils.JVarlerUtils.areDatasSame;
 import static com.jpd.utils.JVarlerUtils.f;
 import static com.jpd.utils.JVarlerUtils.getDepoRootPath;
-import static com.jpd.utils.JVarlerUtils.j;
+import static com.jpd.utils.JVarlerUtils.parseDuration;
 import static com.jpd.utils.JVarlerUtils.toYaml;
-import static java.nio.file.Files.readAllLines;
-import static java.nio.file.Files.writeString;
 import static org.apache.commons.lang3.math.NumberUtils.max;
 import static org.apache.commons.lang3.math.NumberUtils.min;
 
@@ -38,11 +51,11 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
     /** Logger. */
     private final Logger log = LoggingUtils.getLogger(DestinationRenderer.class);
 
-    /** My jinjava instance. */
-    private final Jinjava jinjava;
+    /** Parsed templates, shared across render threads. */
+    private final TemplateCache templateCache;
 
-    /** Config. */
-    private final HashMap<String, Object> bindings;
+    /** Config. Replaced on {@code rebind}. */
+    private HashMap<String, Object> bindings;
 
     /** Destinations. */
     private List<Map<String, Object>> items;
@@ -50,15 +63,112 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
     /** Allow parallel destination rendering. */
     private final Boolean allowParallel;
 
+    /** Number of render threads if rendering in parallel. */
+    private final int jobs;
+
+    /** Destinations as rendered, kept for re-rendering. */
+    private List<Next> nexts = new ArrayList<>();
+
+    /** Frozen global bindings, kept for re-rendering. */
+    private Map<String, Object> globalBindings;
+
+    /** Skip writing any unchanged outputs, not only `writeIf.changed`. */
+    private final boolean skipUnchanged;
+
+    /** Output manifest path, if persisted. */
+    private final String outputManifestPath;
+
+    /** Output manifest, loaded on {@code render()}. */
+    private OutputManifest outputManifest;
+
+    /** Sync outputs to disk before committing them. */
+    private final boolean fsync;
+
+    /** Run shells in reused bash sessions. */
+    private final boolean shellSession;
+
+    /** Working dir relative sources, destinations and shells resolve
+     * against, null for the process working dir.
+     */
+    private final String workingDir;
+
     /** Destination input file path. */
     private final String templateInputPath;
 
-    /** Mapper instance. */
-    private final Mapper mapper = new Mapper();
+    /** Render manifest file path. If set, destinations whose template
+     * and binding reads are unchanged since last run are skipped.
+     */
+    private final String manifestPath;
+
+    /** Render manifest, loaded on {@code render()} if tracking. */
+    private RenderManifest manifest;
+
+    /** Track binding reads in memory, even if not persisted. Lets
+     * {@code rebind} skip destinations whose reads are unchanged.
+     */
+    private final boolean trackReads;
+
+    /** Shell destinations as rendered, kept for {@code rebind}. */
+    private List<Map<String, Object>> shellItems = new ArrayList<>();
+
+    /** Shell outputs by store path, kept for {@code rebind}. Guarded
+     * by {@code bindings}, as shells store them.
+     */
+    private final Map<String, Object> shellOutputs = new LinkedHashMap<>();
+
+    /** Render cache dir. If set, rendered outputs are cached by content. */
+    private final String cacheDir;
+
+    /** Render cache maximum size in bytes. */
+    private final long cacheMaxBytes;
+
+    /** Render cache, created once global bindings are final. */
+    private RenderCache renderCache;
+
+    /** Shell cache file name, in render cache dir or tmp. */
+    private static final String SHELL_CACHE_FILE = "shells.json";
+
+    /** Shell cache, loaded if any shells are cached. */
+    private ShellCache shellCache;
+
+    /** Mapper instance, shared by render threads. */
+    private final ImmutableMapper mapper = new ImmutableMapper();
+
+    /** Fan-out timings of last render, for reporting. */
+    private final Queue<FanOut> fanOuts = new ConcurrentLinkedQueue<>();
+
+    /** Fan-out timing of a destination with many locations. */
+    private static class FanOut {
+
+        /** Destination. */
+        private final Next next;
+
+        /** Locations written. */
+        private final int written;
+
+        /** Time taken staging locations. */
+        private final long nanos;
+
+        /** Constructor. */
+        private FanOut(Next next, int written, long nanos) {
+            this.next = next;
+            this.written = written;
+            this.nanos = nanos;
+        }
+    }
 
     /** Next destination wrapper for ease of value passing. */
     private static class Next {
 
+        /** Path of cache TTL. */
+        private static final MapPath CACHE_TTL = MapPath.parse(Syntax.DOTS, "cache.ttl");
+
+        /** Path of cached environment variables. */
+        private static final MapPath CACHE_ENV = MapPath.parse(Syntax.DOTS, "cache.env");
+
+        /** Path of write if changed clause. */
+        private static final MapPath WRITE_IF_CHANGED = MapPath.parse(Syntax.DOTS, "writeIf.changed");
+
         /** Conditional clause, write if satisfied. */
         private static class WriteIf {
 
@@ -81,6 +191,17 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
         /** Write rendered result here (many). */
         private final List<String> destinations;
 
+        /** How to write to many destinations. */
+        private enum Link {
+            /** Copy (zero-copy) from the first written destination. */
+            COPY,
+            /** Hard link to the first written destination, if allowed. */
+            HARD
+        }
+
+        /** How to write to many destinations, `link: hard|copy`. */
+        private final Link link;
+
         /** Get source template from here. */
         private final String source;
 
@@ -88,6 +209,9 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
          * all defined destinations and run *in order* prior to
          * any destination rendering to avoid issues during
          * parallelised destination rendering.
+         * <p>
+         * Shells declaring `after` (ids of shells to wait for, may
+         * be empty) only wait for those, so may run in parallel.
          */
         private static class Shell {
             private final String shell;
@@ -95,11 +219,35 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
             private final Integer stripRight;
             private final Integer stripLeft;
 
-            public Shell(String shell, String store, Integer stripLeft, Integer stripRight) {
+            /** Id, referenced by `after` of other shells. Optional. */
+            private final String id;
+
+            /** Ids of shells to run after, null if undeclared (i.e.
+             * run after all shells defined before).
+             */
+            private final List<String> after;
+
+            /** Memoise output for this long, null if not cached. */
+            private final Duration cacheTtl;
+
+            /** Environment variables the output depends on, if cached. */
+            private final List<String> cacheEnv;
+
+            /** Fail if not done within this long, null if no limit. */
+            private final Duration timeout;
+
+            public Shell(
+                String shell, String store, Integer stripLeft, Integer stripRight,
+                String id, List<String> after, Duration cacheTtl, List<String> cacheEnv, Duration timeout) {
                 this.shell = shell;
                 this.store = store;
                 this.stripRight = stripRight;
                 this.stripLeft = stripLeft;
+                this.id = id;
+                this.after = after;
+                this.cacheTtl = cacheTtl;
+                this.cacheEnv = cacheEnv;
+                this.timeout = timeout;
             }
         }
 
@@ -108,8 +256,9 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
         /** Constructor. */
         private Next(
             WriteIf writeIf, Shell shell, String source, String destination,
-            List<String> destinations, Map<String, Object> variables) {
+            List<String> destinations, Link link, Map<String, Object> variables) {
             this.destination = destination;
+            this.link = link;
             this.variables = variables;
             this.destinations = destinations;
             this.source = source;
@@ -117,34 +266,89 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
             this.writeIf = writeIf;
         }
 
-        /** Build from raw destination map. */
-        private static Next nextFromDestination(Map<String, Object> destination, Mapper mapper) {
+        /** Get link mode from raw destination map, copy by default. */
+        private static Link linkFromDestination(Map<String, Object> destination) {
+            Object link = destination.get("link");
+            if (link == null) {
+                return Link.COPY;
+            }
+            try {
+                return Link.valueOf(String.valueOf(link).toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new RuntimeException(f("Unknown link: %s (expected hard or copy).", link));
+            }
+        }
+
+        /** Get `after` from raw destination map, single id or list. */
+        private static List<String> afterFromDestination(Map<String, Object> destination) {
+            if (!destination.containsKey("after")) {
+                return null;
+            }
+            Object after = destination.get("after");
+            List<String> ids = new ArrayList<>();
+            if (after instanceof List) {
+                ((List<Object>) after).forEach(id -> ids.add(String.valueOf(id)));
+            } else if (after != null) {
+                ids.add(String.valueOf(after));
+            }
+            return ids;
+        }
+
+        /** Build from raw destination map, resolving relative paths
+         * against {@code workingDir} if set.
+         */
+        private static Next nextFromDestination(
+            Map<String, Object> destination, ImmutableMapper mapper, Path workingDir) {
             Shell shell = null;
             if (destination.containsKey("shell")) {
                 shell = new Shell(
                     (String) destination.get("shell"),
                     (String) destination.get("store"),
                     (Integer) destination.get("stripLeft"),
-                    (Integer) destination.get("stripRight")
+                    (Integer) destination.get("stripRight"),
+                    destination.containsKey("id") ? String.valueOf(destination.get("id")) : null,
+                    afterFromDestination(destination),
+                    destination.containsKey("cache")
+                        ? parseDuration(String.valueOf(mapper.get(destination, CACHE_TTL)))
+                        : null,
+                    destination.containsKey("cache") && mapper.get(destination, CACHE_ENV) != null
+                        ? (List<String>) mapper.get(destination, CACHE_ENV)
+                        : List.of(),
+                    destination.containsKey("timeout")
+                        ? parseDuration(String.valueOf(destination.get("timeout")))
+                        : null
                 );
             }
 
             WriteIf writeIf = null;
             if (destination.containsKey("writeIf")) {
                 writeIf = new WriteIf(
-                    (Boolean) mapper.get(destination, "writeIf.changed")
+                    (Boolean) mapper.get(destination, WRITE_IF_CHANGED)
                 );
             }
 
+            List<String> destinations = (List<String>) destination.get("destinations");
+            if (destinations != null && workingDir != null) {
+                List<String> myDestinations = new ArrayList<>();
+                destinations.forEach(path -> myDestinations.add(resolvePath(workingDir, path)));
+                destinations = myDestinations;
+            }
+
             return new Next(
                 writeIf,
                 shell,
-                (String) destination.get("source"),
-                (String) destination.get("destination"),
-                (List<String>) destination.get("destinations"),
+                resolvePath(workingDir, (String) destination.get("source")),
+                resolvePath(workingDir, (String) destination.get("destination")),
+                destinations,
+                linkFromDestination(destination),
                 (Map<String, Object>) destination.get("variables")
             );
         }
+
+        /** Helper: resolve path against working dir, if both set. */
+        private static String resolvePath(Path workingDir, String path) {
+            return workingDir == null || path == null ? path : workingDir.resolve(path).toString();
+        }
     }
 
     /** A builder for ease of extensibility. */
@@ -162,6 +366,39 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
         /** Allow rendering in parallel. */
         private boolean allowParallel;
 
+        /** Skip writing any unchanged outputs. */
+        private boolean skipUnchanged;
+
+        /** Output manifest path. Optional. */
+        private String outputManifestPath;
+
+        /** Sync outputs to disk before committing them. */
+        private boolean fsync;
+
+        /** Run shells in reused bash sessions. */
+        private boolean shellSession;
+
+        /** Template cache, may be shared across runs. Optional. */
+        private TemplateCache templateCache;
+
+        /** Number of render threads. */
+        private int jobs = Runtime.getRuntime().availableProcessors();
+
+        /** Render manifest path. Optional. */
+        private String manifestPath;
+
+        /** Render cache dir. Optional. */
+        private String cacheDir;
+
+        /** Render cache maximum size in bytes. */
+        private long cacheMaxBytes;
+
+        /** Track binding reads in memory. */
+        private boolean trackReads;
+
+        /** Working dir to resolve relative paths against. Optional. */
+        private String workingDir;
+
         /** Make private. */
         private Builder() {
         }
@@ -176,8 +413,12 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
             Objects.requireNonNull(bindings);
             Objects.requireNonNull(templateInputPath);
             Objects.requireNonNull(jinjavaInstanceFactory);
+            TemplateCache myTemplateCache = templateCache != null
+                ? templateCache
+                : new TemplateCache(jinjavaInstanceFactory.get());
             return new DestinationRenderer(
-                templateInputPath, bindings, jinjavaInstanceFactory.get(), allowParallel);
+                templateInputPath, bindings, myTemplateCache, allowParallel, jobs, skipUnchanged, outputManifestPath, fsync, manifestPath,
+                cacheDir, cacheMaxBytes, shellSession, trackReads, workingDir);
         }
 
         /** Set bindings to use. */
@@ -198,6 +439,86 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
             return this;
         }
 
+        /** Set template cache. O/w a new one is created per renderer. */
+        public Builder withTemplateCache(TemplateCache templateCache) {
+            this.templateCache = templateCache;
+            return this;
+        }
+
+        /** Skip writing any unchanged outputs (e.g. in watch mode). O/w
+         * only outputs with `writeIf.changed` are checked.
+         */
+        public Builder skipUnchanged(boolean skipUnchanged) {
+            this.skipUnchanged = skipUnchanged;
+            return this;
+        }
+
+        /** Persist sizes, modification times and hashes of outputs in
+         * a manifest at this path. Makes checking for unchanged outputs
+         * cheap across runs.
+         */
+        public Builder withOutputManifestPath(String outputManifestPath) {
+            this.outputManifestPath = outputManifestPath;
+            return this;
+        }
+
+        /** Render incrementally, tracking binding reads in a manifest
+         * at this path. Destinations are only rendered if their template
+         * or any binding value they read changed.
+         */
+        public Builder withManifestPath(String manifestPath) {
+            this.manifestPath = manifestPath;
+            return this;
+        }
+
+        /** Cache rendered outputs in {@code cacheDir}, keyed by template
+         * and bindings. Least recently used outputs are evicted beyond
+         * {@code maxBytes}.
+         */
+        public Builder withRenderCache(String cacheDir, long maxBytes) {
+            this.cacheDir = cacheDir;
+            this.cacheMaxBytes = maxBytes;
+            return this;
+        }
+
+        /** Track binding reads in memory (e.g. in watch mode), even if
+         * not rendering incrementally. Required for {@code rebind} to
+         * only re-render destinations whose reads changed.
+         */
+        public Builder trackReads(boolean trackReads) {
+            this.trackReads = trackReads;
+            return this;
+        }
+
+        /** Resolve relative sources and destinations, and run shells,
+         * against this working dir (e.g. a daemon client's) rather than
+         * the process working dir.
+         */
+        public Builder withWorkingDir(String workingDir) {
+            this.workingDir = workingDir;
+            return this;
+        }
+
+        /** Sync outputs to disk (as a group) before committing them. */
+        public Builder fsync(boolean fsync) {
+            this.fsync = fsync;
+            return this;
+        }
+
+        /** Run shells in long running bash sessions (one per shell
+         * thread) rather than a new bash per shell.
+         */
+        public Builder shellSession(boolean shellSession) {
+            this.shellSession = shellSession;
+            return this;
+        }
+
+        /** Set number of render threads. */
+        public Builder withJobs(int jobs) {
+            this.jobs = jobs;
+            return this;
+        }
+
         /** Set jinjava instance factory. */
         public DestinationRenderer.Builder withJinjavaInstanceFactory(
             Helpers.IProducer<Jinjava> jinjavaInstanceFactory) {
@@ -209,11 +530,23 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
     /** Private constructor. */
     private DestinationRenderer(
         String templateInputPath, HashMap<String, Object> bindings,
-        Jinjava jinjava, boolean allowParallel) {
+        TemplateCache templateCache, boolean allowParallel, int jobs,
+        boolean skipUnchanged, String outputManifestPath, boolean fsync, String manifestPath,
+        String cacheDir, long cacheMaxBytes, boolean shellSession, boolean trackReads, String workingDir) {
         this.bindings = bindings;
-        this.jinjava = jinjava;
+        this.templateCache = templateCache;
         this.allowParallel = allowParallel;
+        this.jobs = jobs;
+        this.skipUnchanged = skipUnchanged;
+        this.outputManifestPath = outputManifestPath;
+        this.fsync = fsync;
         this.templateInputPath = templateInputPath;
+        this.manifestPath = manifestPath;
+        this.cacheDir = cacheDir;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.shellSession = shellSession;
+        this.trackReads = trackReads;
+        this.workingDir = workingDir;
     }
 
     /** Render destinations. */
@@ -221,125 +554,446 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
     public void render() {
         log.info("Rendering destinations.");
         items = toYaml(readAndRenderTemplate(templateInputPath, bindings));
+        outputManifest = OutputManifest.load(outputManifestPath);
+        if (manifestPath != null || trackReads) {
+            manifest = RenderManifest.load(manifestPath);
+        }
         renderAndWriteAllDestinations();
+        finishRender();
     }
 
-    /** Read from input and render against bindings. */
-    private String readAndRenderTemplate(String inputPath, Map<String, Object> localBindings) {
-        try {
-            // Jinja only in destinations and destination templates.
-            List<String> lines = readAllLines(Path.of(inputPath));
-            List<String> clean = new ArrayList<>();
-            for (String line : lines) {
-                String stripped = line.strip();
-                if (stripped.startsWith("#") || stripped.startsWith("\n") || stripped.equals("")) {
-                    // Ignore.
-                    continue;
-                }
-                clean.add(line);
-            }
-            String template = j("\n", clean.toArray(new String[0]));
-
-            // This can set from elsewhere.
-            template = jinjava.render(template, localBindings);
-            return template;
+    /** Re-render against {@code newBindings} (e.g. after the config
+     * changed), reusing the outputs of the shells run by {@code render()}.
+     * Only destinations whose template or binding reads changed are
+     * rendered again (if tracking reads). Returns false, rendering
+     * nothing, if the shells changed, a full {@code render()} is
+     * required then. Only valid after {@code render()}.
+     */
+    public boolean rebind(HashMap<String, Object> newBindings) {
+        List<Map<String, Object>> newItems = toYaml(readAndRenderTemplate(templateInputPath, newBindings));
+        if (!getShellItems(newItems).equals(shellItems)) {
+            log.info("Shells changed, can't rebind.");
+            return false;
+        }
+        log.info(f("Rebinding destinations, reusing %d shell output(s).", shellOutputs.size()));
+        items = newItems;
+        // Same shells, so same outputs, stored as before.
+        shellOutputs.forEach(
+            (store, output) -> mapper.set(output, newBindings, MapPath.parse(Syntax.DOTS, store)));
+        bindings = newBindings;
+        globalBindings = OverlayMap.freeze(bindings);
+        if (cacheDir != null) {
+            renderCache = new RenderCache(cacheDir, cacheMaxBytes, templateCache, globalBindings);
+        }
+        if (manifest != null) {
+            manifest.bindingsChanged();
+        }
+        nexts = getNexts();
+        renderAndWrite(nexts);
+        finishRender();
+        return true;
+    }
 
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+    /** Save manifests and report, once rendered. */
+    private void finishRender() {
+        if (manifest != null) {
+            Set<String> destinations = new HashSet<>();
+            nexts.forEach(next -> destinations.add(next.destination));
+            manifest.retainAll(destinations);
+            manifest.save();
         }
+        outputManifest.save();
+        if (renderCache != null) {
+            renderCache.logStats();
+            renderCache.evict();
+        }
+        templateCache.logStats();
+    }
+
+    /** Read from input and render against bindings. */
+    private String readAndRenderTemplate(String inputPath, Map<String, Object> localBindings) {
+        // Jinja only in destinations and destination templates.
+        // Templates are read and parsed once, then served from cache.
+        return templateCache.render(inputPath, localBindings);
     }
 
     /** Render and write all destination files. */
     private void renderAndWriteAllDestinations() {
-        SimpleBashClient simpleBashClient = new SimpleBashClient(getDepoRootPath());
         List<Next.Shell> shells = new ArrayList<>();
         // Shells may rely on ordering, so we perform outside of parallel stream.
         for (Map<String, Object> destination : items) {
-            Next.Shell shell = Next.nextFromDestination(destination, mapper).shell;
+            Next.Shell shell = Next.nextFromDestination(destination, mapper, null).shell;
             if (shell != null) {
                 shells.add(shell);
             }
         }
+        shellItems = getShellItems(items);
+        shellOutputs.clear();
 
         // Handle shells. Shells are capable to store output.
-        shells.forEach(x -> {
-            handleShell(simpleBashClient, x);
-        });
+        try (SimpleBashClient simpleBashClient = new SimpleBashClient(getDepoRootPath(workingDir), shellSession)) {
+            handleShells(simpleBashClient, shells);
+        }
 
-        // For debugging it may make sense to serialise.
-        Stream<Map<String, Object>> destinationStream = allowParallel
-            ? items.parallelStream()
-            : items.stream();
+        // Shells are done writing to bindings. From here on bindings
+        // are shared read-only across all render threads.
+        globalBindings = OverlayMap.freeze(bindings);
+        if (cacheDir != null) {
+            renderCache = new RenderCache(cacheDir, cacheMaxBytes, templateCache, globalBindings);
+        }
+
+        // Collect destinations up front.
+        nexts = getNexts();
+        renderAndWrite(nexts);
+    }
 
-        destinationStream.forEach(item -> {
+    /** Get destinations (with a source) of items. */
+    private List<Next> getNexts() {
+        List<Next> myNexts = new ArrayList<>();
+        for (Map<String, Object> item : items) {
             if (item != null) {
-                Next next = Next.nextFromDestination(item, mapper);
+                Next next = Next.nextFromDestination(
+                    item, mapper, workingDir == null ? null : Path.of(workingDir));
                 if (next.source != null) {
                     if (next.destination == null) {
                         throw new RuntimeException("Found source with destination unset.");
                     }
+                    myNexts.add(next);
+                }
+            }
+        }
+        return myNexts;
+    }
 
-                    // 1. Add local variables from destination space if set.
-                    // Ensure to use a deepcopy here.
-                    Map<String, Object> localBindings = SerializationUtils.clone(this.bindings);
-                    Map<String, Object> localVars = next.variables;
-                    if (localVars != null) {
-                        mapper.update(localVars, localBindings);
-                    }
+    /** Get shell items, as rendered. */
+    private static List<Map<String, Object>> getShellItems(List<Map<String, Object>> items) {
+        List<Map<String, Object>> shells = new ArrayList<>();
+        for (Map<String, Object> item : items) {
+            if (item != null && item.containsKey("shell")) {
+                shells.add(item);
+            }
+        }
+        return shells;
+    }
+
+    /** Re-render and write only destinations using any of {@code sources}
+     * as template. Shells are not re-run, bindings are kept as is.
+     * Only valid after {@code render()}.
+     */
+    public void rerender(Set<Path> sources) {
+        List<Next> matching = new ArrayList<>();
+        for (Next next : nexts) {
+            if (sources.contains(Path.of(next.source).toAbsolutePath().normalize())) {
+                matching.add(next);
+            }
+        }
+        log.info(f("Re-rendering %d destination(s).", matching.size()));
+        renderAndWrite(matching);
+        if (manifest != null) {
+            manifest.save();
+        }
+        outputManifest.save();
+        templateCache.logStats();
+    }
+
+    /** Get all source template paths (after {@code render()}). */
+    public Set<Path> getSources() {
+        Set<Path> sources = new HashSet<>();
+        for (Next next : nexts) {
+            sources.add(Path.of(next.source).toAbsolutePath().normalize());
+        }
+        return sources;
+    }
+
+    /** Render and write destinations, largest template first. Larger
+     * templates take longest to render, starting them early keeps
+     * them from dominating the tail of the run.
+     */
+    private void renderAndWrite(List<Next> toRender) {
+        List<Next> sorted = new ArrayList<>(toRender);
+        Map<String, Long> templateSizes = new HashMap<>();
+        for (Next next : sorted) {
+            templateSizes.computeIfAbsent(next.source, DestinationRenderer::templateSize);
+        }
+        sorted.sort(Comparator.comparing((Next next) -> templateSizes.get(next.source)).reversed());
+
+        // Outputs are staged while rendering, committed once all rendered.
+        OutputWriter writer = new OutputWriter(outputManifest, fsync);
+        fanOuts.clear();
+        List<String> outputs = new ArrayList<>();
+        sorted.forEach(next -> outputs.addAll(getOutputs(next)));
+
+        // For debugging it may make sense to serialise.
+        int myJobs = allowParallel ? jobs : 1;
+        try (RenderScheduler scheduler = new RenderScheduler(myJobs)) {
+            writer.createDirectories(outputs);
+            for (Next next : sorted) {
+                scheduler.submit(
+                    // 1. Load source file (I/O).
+                    () -> templateCache.get(next.source),
 
-                    // 2. Load source file and render against global bindings + local vars.
-                    String template = readAndRenderTemplate(next.source, localBindings);
-
-                    // 3. Save to destination file.
-                    try {
-                        File destinationFile = new File(next.destination);
-                        boolean write = okToWrite(next.writeIf, destinationFile, template);
-
-                        if (write) {
-                            File parentDir = destinationFile.getParentFile();
-                            if (parentDir != null && !parentDir.exists()) {
-                                if (!parentDir.mkdirs()) {
-                                    // Maybe another thread raced me here?
-                                    // Only throw if it still doesn't exist.
-                                    if (!parentDir.exists()) {
-                                        throw new RuntimeException(
-                                            f("Something has failed when creating dir: %s", parentDir));
-                                    }
-                                }
-                            }
-
-                            // Write to single location.
-                            writeString(Path.of(next.destination), template);
-                            log.info(f("Rendered: %s -> %s", next.source, next.destination));
+                    // 2. Render against global bindings + local vars (CPU).
+                    // Local vars are overlaid on top of global bindings, no copy required.
+                    template -> renderDestination(next, template),
+
+                    // 3. Stage destination file(s) (I/O). Null if up to date.
+                    template -> {
+                        if (template != null) {
+                            writeDestinations(next, template, writer);
                         }
+                    });
+            }
+            scheduler.join();
+            writer.commit();
+            scheduler.logStats();
+            logFanOuts();
+        } catch (RuntimeException ex) {
+            // All or nothing.
+            writer.abort();
+            throw ex;
+        }
+    }
+
+    /** Log fan-out timings, slowest first. */
+    private void logFanOuts() {
+        List<FanOut> sortedFanOuts = new ArrayList<>(fanOuts);
+        fanOuts.clear();
+        sortedFanOuts.sort(Comparator.comparing((FanOut fanOut) -> fanOut.nanos).reversed());
+        for (FanOut fanOut : sortedFanOuts) {
+            log.info(f("Fan-out: %s -> %d/%d destinations (%s) in %.1fms",
+                fanOut.next.destination, fanOut.written, fanOut.next.destinations.size(),
+                fanOut.next.link.name().toLowerCase(), fanOut.nanos / 1e6));
+        }
+    }
+
+    /** Render destination. If rendering incrementally, returns null
+     * if up to date, o/w records binding reads. If caching, previously
+     * rendered outputs are served from the render cache.
+     */
+    private String renderDestination(Next next, TemplateCache.Template template) {
+        Map<String, Object> localBindings = mapper.overlay(next.variables, globalBindings, Mapper.ArrayStrategy.APPEND);
+        if (manifest == null && renderCache == null) {
+            return templateCache.render(template, localBindings);
+        }
+        Set<String> localKeys = next.variables != null ? next.variables.keySet() : Set.of();
+        if (manifest != null
+            && manifest.isUpToDate(next.destination, getOutputs(next), template, localBindings, localKeys)) {
+            log.info(f("Up to date: %s", next.destination));
+            return null;
+        }
 
-                        // Write to multiple locations.
-                        if (next.destinations != null) {
-                            next.destinations.forEach(destination -> {
-                                try {
-                                    File destFile = new File(destination);
-                                    boolean writeDest = okToWrite(next.writeIf, destFile, template);
-
-                                    if (writeDest) {
-                                        writeString(destFile.toPath(), template);
-                                        log.info(f("Rendered: %s -> %s", next.source, next.destination));
-                                    }
-                                } catch (IOException ex) {
-                                    throw new RuntimeException(ex);
-                                }
-                            });
+        // Cached renders carry their binding reads along, for the manifest.
+        String key = renderCache != null ? renderCache.getKey(template, next.variables) : null;
+        RenderCache.Entry rendered = key != null ? renderCache.get(key) : null;
+        if (rendered == null) {
+            ReadTracker tracker = new ReadTracker();
+            rendered = new RenderCache.Entry();
+            rendered.output = templateCache.render(template, localBindings, tracker);
+            rendered.reads.addAll(tracker.getReads());
+            if (key != null) {
+                renderCache.put(key, rendered);
+            }
+        }
+        if (manifest != null) {
+            manifest.record(next.destination, template, rendered.reads, localBindings, localKeys);
+        }
+        return rendered.output;
+    }
+
+    /** Helper: all output paths of destination. */
+    private static List<String> getOutputs(Next next) {
+        List<String> outputs = new ArrayList<>();
+        outputs.add(next.destination);
+        if (next.destinations != null) {
+            outputs.addAll(next.destinations);
+        }
+        return outputs;
+    }
+
+    /** Stage rendered template for destination file(s). */
+    private void writeDestinations(Next next, String template, OutputWriter writer) {
+        try {
+            // Encode and hash once, for all locations.
+            byte[] content = template.getBytes(StandardCharsets.UTF_8);
+            String hash = OutputManifest.hash(content);
+            File destinationFile = new File(next.destination);
+            boolean write = okToWrite(next.writeIf, destinationFile, content, hash);
+
+            Path staged = null;
+            if (write) {
+                // Write to single location.
+                staged = writer.stage(destinationFile.toPath(), content, hash);
+                log.info(f("Rendered: %s -> %s", next.source, next.destination));
+            }
+
+            // Write to multiple locations. Copied from the first staged
+            // copy, no need to write (or hash) the content again.
+            if (next.destinations != null) {
+                long start = System.nanoTime();
+                int written = 0;
+                for (String destination : next.destinations) {
+                    File destFile = new File(destination);
+                    boolean writeDest = okToWrite(next.writeIf, destFile, content, hash);
+
+                    if (writeDest) {
+                        if (staged == null) {
+                            staged = writer.stage(destFile.toPath(), content, hash);
+                        } else {
+                            writer.stageCopy(staged, destFile.toPath(), hash, next.link == Next.Link.HARD);
                         }
-                    } catch (Exception ex) {
-                        log.severe(f("Failed when rendering: %s -> %s", next.source, next.destination));
-                        throw new RuntimeException(ex);
+                        written++;
+                        log.info(f("Rendered: %s -> %s", next.source, destination));
                     }
                 }
+                fanOuts.add(new FanOut(next, written, System.nanoTime() - start));
             }
-        });
+        } catch (Exception ex) {
+            log.severe(f("Failed when rendering: %s -> %s", next.source, next.destination));
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Template size in bytes, used for scheduling. Zero if unknown. */
+    private static long templateSize(String source) {
+        try {
+            return Files.size(Path.of(source));
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+
+    /** Run shells. In order, unless any declare `after`, in which case
+     * they run as a dependency graph on a bounded pool.
+     */
+    private void handleShells(SimpleBashClient simpleBashClient, List<Next.Shell> shells) {
+        if (shells.stream().anyMatch(x -> x.cacheTtl != null)) {
+            shellCache = ShellCache.load(cacheDir != null
+                ? Path.of(cacheDir, SHELL_CACHE_FILE)
+                : Path.of(System.getProperty("java.io.tmpdir"), "jvarler", SHELL_CACHE_FILE));
+        }
+        try {
+            runShells(simpleBashClient, shells);
+        } finally {
+            if (shellCache != null) {
+                shellCache.save();
+            }
+        }
+    }
+
+    /** Run shells. See {@code handleShells}. */
+    private void runShells(SimpleBashClient simpleBashClient, List<Next.Shell> shells) {
+        if (shells.stream().noneMatch(x -> x.after != null)) {
+            shells.forEach(x -> handleShell(simpleBashClient, x));
+            return;
+        }
+
+        // Validate all up front, nothing runs on a broken graph.
+        List<List<Integer>> dependencies = getShellDependencies(shells);
+        List<Integer> order = getShellOrder(shells, dependencies);
+
+        long start = System.nanoTime();
+        // Clamped, same as the render scheduler.
+        int shellJobs = allowParallel ? Math.max(1, jobs) : 1;
+        ExecutorService pool = Executors.newFixedThreadPool(shellJobs);
+        try {
+            List<CompletableFuture<Void>> scheduled = new ArrayList<>(Collections.nCopies(shells.size(), null));
+            for (int i : order) {
+                Next.Shell shell = shells.get(i);
+                CompletableFuture<?>[] waitFor = dependencies.get(i).stream()
+                    .map(scheduled::get)
+                    .toArray(CompletableFuture[]::new);
+                scheduled.set(i, CompletableFuture.allOf(waitFor)
+                    .thenRunAsync(() -> handleShell(simpleBashClient, shell), pool));
+            }
+            CompletableFuture.allOf(scheduled.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        log.info(f("Ran %d shell(s) in %dms (jobs=%d).",
+            shells.size(), (System.nanoTime() - start) / 1_000_000, shellJobs));
+    }
+
+    /** Get dependencies (indices) per shell. Shells not declaring `after`
+     * depend on all shells defined before, as if run in order.
+     */
+    private static List<List<Integer>> getShellDependencies(List<Next.Shell> shells) {
+        Map<String, Integer> indexById = new HashMap<>();
+        for (int i = 0; i < shells.size(); i++) {
+            String id = shells.get(i).id;
+            if (id != null && indexById.put(id, i) != null) {
+                throw new RuntimeException(f("Duplicate shell id: %s", id));
+            }
+        }
+        List<List<Integer>> dependencies = new ArrayList<>();
+        for (int i = 0; i < shells.size(); i++) {
+            List<Integer> myDependencies = new ArrayList<>();
+            Next.Shell shell = shells.get(i);
+            if (shell.after == null) {
+                for (int j = 0; j < i; j++) {
+                    myDependencies.add(j);
+                }
+            } else {
+                for (String id : shell.after) {
+                    Integer j = indexById.get(id);
+                    if (j == null) {
+                        throw new RuntimeException(f("Unknown shell id in after: %s", id));
+                    }
+                    myDependencies.add(j);
+                }
+            }
+            dependencies.add(myDependencies);
+        }
+        return dependencies;
+    }
+
+    /** Get a topological order of shells, fail on cycles. */
+    private static List<Integer> getShellOrder(List<Next.Shell> shells, List<List<Integer>> dependencies) {
+        List<Integer> order = new ArrayList<>();
+        int[] state = new int[shells.size()];
+        for (int i = 0; i < shells.size(); i++) {
+            visitShell(shells, dependencies, i, state, order);
+        }
+        return order;
+    }
+
+    /** Depth first visit, state: 0 unvisited, 1 visiting, 2 done. */
+    private static void visitShell(
+        List<Next.Shell> shells, List<List<Integer>> dependencies, int i, int[] state, List<Integer> order) {
+        if (state[i] == 2) {
+            return;
+        }
+        if (state[i] == 1) {
+            throw new RuntimeException(f("Shell dependency cycle at: %s", shells.get(i).id));
+        }
+        state[i] = 1;
+        for (int j : dependencies.get(i)) {
+            visitShell(shells, dependencies, j, state, order);
+        }
+        state[i] = 2;
+        order.add(i);
     }
 
     private void handleShell(SimpleBashClient simpleBashClient, Next.Shell x) {
-        String output = simpleBashClient.run(x.shell);
+        String output = null;
+        String key = null;
+        if (x.cacheTtl != null) {
+            key = ShellCache.key(x.shell, simpleBashClient.getWorkingDir(), x.cacheEnv);
+            output = shellCache.get(key);
+            if (output != null) {
+                log.info(f("Cached shell: %s", x.shell));
+            }
+        }
+        if (output == null) {
+            output = simpleBashClient.runWithTimeout(x.timeout, x.shell);
+            if (key != null) {
+                shellCache.put(key, x.shell, output, x.cacheTtl);
+            }
+        }
         if (output != null && x.stripLeft != null) {
             output = output.substring(max(0, x.stripLeft));
         }
@@ -350,25 +1004,26 @@ public class DestinationRenderer implements IRenderer<List<Map<String, Object>>>
             log.info(f("Output: %s", output));
         }
         if (x.store != null) {
-            mapper.set(output, bindings, x.store);
+            // Shells may run in parallel, bindings are not thread-safe.
+            synchronized (bindings) {
+                mapper.set(output, bindings, MapPath.parse(Syntax.DOTS, x.store));
+                shellOutputs.put(x.store, output);
+            }
             log.info(f("Stored as: %s", x.store));
         }
     }
 
-    private boolean okToWrite(Next.WriteIf writeIf, File destinationFile, String template) throws IOException {
-        if (writeIf == null) {
-            return true;
-        }
-        if (writeIf.changed != null && writeIf.changed) {
-            if (destinationFile.exists()) {
-                boolean changed = !areDatasSame(
-                    Files.readAllBytes(destinationFile.toPath()),
-                    template.getBytes(StandardCharsets.UTF_8));
-                if (!changed) {
-                    log.info(f("Skipping: %s", destinationFile.getPath()));
-                }
-                return changed;
-            }
+    /** Write unless unchanged and only writing changes (`writeIf.changed`
+     * or skipping any unchanged). Checked against the output manifest,
+     * see {@code OutputManifest}.
+     */
+    private boolean okToWrite(
+        Next.WriteIf writeIf, File destinationFile, byte[] content, String hash) throws IOException {
+        boolean changedOnly = skipUnchanged
+            || writeIf != null && writeIf.changed != null && writeIf.changed;
+        if (changedOnly && outputManifest.isUnchanged(destinationFile.toPath(), content, hash)) {
+            log.info(f("Skipping: %s", destinationFile.getPath()));
+            return false;
         }
         return true;
     }
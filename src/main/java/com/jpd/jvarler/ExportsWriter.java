@@ -0,0 +1,207 @@
+package com.jpd.jvarler;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.jpd.serialiser.JSONSerialiser;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.PRETTY_TAB_SIZE;
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Exports writer. Streams the config as JSON straight to disk, rather
+ * than building it in memory first. Keys are written in canonical
+ * (sorted) order, so equal configs always result in equal exports.
+ * <p>
+ * Exports are written to a temp file, hashed on the way. If equal to
+ * the exports on disk (see {@code OutputManifest}) the existing file is
+ * left untouched, o/w the temp file is moved in place.
+ */
+public class ExportsWriter {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(ExportsWriter.class);
+
+    /** Write buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Serialiser, writes keys sorted. */
+    private static final JSONSerialiser serialiser = new JSONSerialiser();
+
+    /** Write without whitespace, for machine consumers. */
+    private final boolean compact;
+
+    /** Output manifest path, null if not persisted. */
+    private final String outputManifestPath;
+
+    /** Constructor. */
+    public ExportsWriter(boolean compact, String outputManifestPath) {
+        this.compact = compact;
+        this.outputManifestPath = outputManifestPath;
+    }
+
+    /** Write {@code config} to {@code path}, unless unchanged. Returns
+     * the content hash of the exports.
+     */
+    public String write(String path, Map<String, Object> config) {
+        Path target = Path.of(path);
+        Path temp = null;
+        try {
+            // Symlinked exports are written through. Temp file next to
+            // the target, renames don't cross file systems.
+            if (Files.isSymbolicLink(target)) {
+                target = target.toRealPath();
+            }
+            temp = target.toAbsolutePath()
+                .resolveSibling(f(".%s.%s.jvtmp", target.getFileName(), UUID.randomUUID()));
+            String hash;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 OutputManifest.HashingOutputStream out = new OutputManifest.HashingOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))) {
+                // Null values left out, as they always were (and can't be merged back in).
+                serialiser.write(config, out, compact ? null : new ExportsPrettyPrinter(), true);
+                hash = out.getHash();
+            }
+
+            OutputManifest outputManifest = OutputManifest.load(outputManifestPath);
+            if (outputManifest.isUnchanged(target, temp, hash)) {
+                Files.delete(temp);
+                log.info(f("Config unchanged: %s", path));
+            } else {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                outputManifest.record(target, hash);
+                log.info(f("Written config to: %s", path));
+            }
+            outputManifest.save();
+            return hash;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            try {
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException ex) {
+                log.warning(f("Failed removing temp file: %s", temp));
+            }
+        }
+    }
+
+    /** Pretty printer, laid out as exports always were (org.json with
+     * an indent of {@code PRETTY_TAB_SIZE}): one entry per line, single
+     * entry objects and arrays inline, empty ones as `{}` and `[]`.
+     */
+    private static class ExportsPrettyPrinter implements JSONSerialiser.SizedPrettyPrinter {
+
+        /** Size of the object or array started next, -1 if unknown. */
+        private int nextSize = -1;
+
+        /** Per open object or array, are its entries one per line? */
+        private final Deque<Boolean> multiLine = new ArrayDeque<>();
+
+        /** Current indent, in levels. */
+        private int level;
+
+        @Override
+        public void nextSize(int size) {
+            nextSize = size;
+        }
+
+        @Override
+        public void writeRootValueSeparator(JsonGenerator generator) throws IOException {
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void writeStartObject(JsonGenerator generator) throws IOException {
+            start(generator, '{');
+        }
+
+        @Override
+        public void beforeObjectEntries(JsonGenerator generator) throws IOException {
+            newLineIfMultiLine(generator);
+        }
+
+        @Override
+        public void writeObjectFieldValueSeparator(JsonGenerator generator) throws IOException {
+            generator.writeRaw(": ");
+        }
+
+        @Override
+        public void writeObjectEntrySeparator(JsonGenerator generator) throws IOException {
+            generator.writeRaw(',');
+            newLineIfMultiLine(generator);
+        }
+
+        @Override
+        public void writeEndObject(JsonGenerator generator, int nrOfEntries) throws IOException {
+            end(generator, '}');
+        }
+
+        @Override
+        public void writeStartArray(JsonGenerator generator) throws IOException {
+            start(generator, '[');
+        }
+
+        @Override
+        public void beforeArrayValues(JsonGenerator generator) throws IOException {
+            newLineIfMultiLine(generator);
+        }
+
+        @Override
+        public void writeArrayValueSeparator(JsonGenerator generator) throws IOException {
+            generator.writeRaw(',');
+            newLineIfMultiLine(generator);
+        }
+
+        @Override
+        public void writeEndArray(JsonGenerator generator, int nrOfValues) throws IOException {
+            end(generator, ']');
+        }
+
+        /** Helper: start object or array, indent if multi line. */
+        private void start(JsonGenerator generator, char open) throws IOException {
+            boolean isMultiLine = nextSize != 0 && nextSize != 1;
+            nextSize = -1;
+            multiLine.push(isMultiLine);
+            if (isMultiLine) {
+                level++;
+            }
+            generator.writeRaw(open);
+        }
+
+        /** Helper: end object or array, outdent if multi line. */
+        private void end(JsonGenerator generator, char close) throws IOException {
+            if (multiLine.pop()) {
+                level--;
+                newLine(generator);
+            }
+            generator.writeRaw(close);
+        }
+
+        /** Helper: new line, if entries are one per line. */
+        private void newLineIfMultiLine(JsonGenerator generator) throws IOException {
+            if (!multiLine.isEmpty() && multiLine.peek()) {
+                newLine(generator);
+            }
+        }
+
+        /** Helper: new line, indented. */
+        private void newLine(JsonGenerator generator) throws IOException {
+            generator.writeRaw('\n');
+            generator.writeRaw(" ".repeat(level * PRETTY_TAB_SIZE));
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.jpd.jvarler;
+
+import com.jpd.serialiser.ISerialiser;
+import com.jpd.serialiser.JSONSerialiser;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import static com.jpd.utils.JVarlerUtils.f;
+import static java.nio.file.Files.writeString;
+
+/** Output manifest. Holds size, modification time and a (fast,
+ * non-cryptographic) hash of every output written, so checking
+ * whether an output changed doesn't require reading it:
+ * <ol>
+ *     <li>Different size: changed.</li>
+ *     <li>Size and modification time as recorded: compare hashes.</li>
+ *     <li>O/w: compare contents, stopping at the first difference.</li>
+ * </ol>
+ * Entries modified at or after the manifest was last saved are racy
+ * (as in git): on coarse timestamp file systems (e.g. NFS) the output
+ * may have been modified again within the same tick, without its size
+ * or modification time changing. Their contents are always compared.
+ * Kept as a sidecar file next to the exports. Safe to use across
+ * render threads.
+ */
+class OutputManifest {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(OutputManifest.class);
+
+    /** Serialiser. */
+    private static final ISerialiser serialiser = new JSONSerialiser();
+
+    /** Buffer size used when comparing contents. */
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+    /** Manifest file path, null if not persisted. */
+    private final Path path;
+
+    /** Entries by (normalised) output path. */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Modification time (millis) of the manifest file when last loaded
+     * or saved. Entries modified at or after are racy.
+     */
+    private volatile long saved = Long.MIN_VALUE;
+
+    /** A manifest entry. Public fields for (de)serialisation. */
+    public static class Entry {
+
+        /** Size in bytes. */
+        public long size;
+
+        /** Modification time in millis. */
+        public long modified;
+
+        /** Content hash. */
+        public String hash;
+    }
+
+    /** Manifest file layout. */
+    public static class Layout {
+
+        /** Entries by output path. */
+        public Map<String, Entry> outputs = new TreeMap<>();
+    }
+
+    /** Constructor. */
+    private OutputManifest(Path path) {
+        this.path = path;
+    }
+
+    /** Load manifest from path. Missing or unreadable manifests result
+     * in an empty manifest. If {@code path} is null, the manifest is
+     * kept in memory only.
+     */
+    static OutputManifest load(String path) {
+        OutputManifest manifest = new OutputManifest(path != null ? Path.of(path) : null);
+        if (manifest.path != null && Files.exists(manifest.path)) {
+            try {
+                Layout layout = serialiser.fromJSONStringJackson(Files.readString(manifest.path), Layout.class);
+                manifest.entries.putAll(layout.outputs);
+                manifest.saved = Files.getLastModifiedTime(manifest.path).toMillis();
+            } catch (IOException | RuntimeException ex) {
+                manifest.log.warning(f("Ignoring unreadable output manifest %s: %s", path, ex.getMessage()));
+            }
+        }
+        return manifest;
+    }
+
+    /** Does {@code output} exist with exactly {@code content}? */
+    boolean isUnchanged(Path output, byte[] content, String hash) throws IOException {
+        return isUnchanged(output, content.length, hash, () -> hasContent(output, content));
+    }
+
+    /** Does {@code output} exist with exactly the content of (the
+     * already written) {@code staged}?
+     */
+    boolean isUnchanged(Path output, Path staged, String hash) throws IOException {
+        return isUnchanged(output, Files.size(staged), hash, () -> hasSameContent(output, staged));
+    }
+
+    /** Helper: does {@code output} exist with content of {@code size}
+     * and {@code hash}? Falls back to {@code sameContent} if unknown.
+     */
+    private boolean isUnchanged(Path output, long size, String hash, ContentCheck sameContent) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(output, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        if (attributes.size() != size) {
+            return false;
+        }
+        String key = keyOf(output);
+        Entry entry = entries.get(key);
+        if (entry != null
+            && entry.size == attributes.size()
+            && entry.modified == attributes.lastModifiedTime().toMillis()
+            && entry.modified < saved) {
+            return entry.hash.equals(hash);
+        }
+
+        // Not written by us, modified since, or racy. Compare, then remember.
+        boolean same = sameContent.isSame();
+        if (same) {
+            entries.put(key, newEntry(attributes, hash));
+        }
+        return same;
+    }
+
+    /** Record {@code output} as just written with content of {@code hash}. */
+    void record(Path output, String hash) throws IOException {
+        entries.put(keyOf(output), newEntry(Files.readAttributes(output, BasicFileAttributes.class), hash));
+    }
+
+    /** Write manifest to disk, if persisted. */
+    void save() {
+        if (path == null) {
+            return;
+        }
+        Layout layout = new Layout();
+        layout.outputs.putAll(entries);
+        try {
+            writeString(path, serialiser.toJSONStringJackson(layout));
+            saved = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Fast content hash, CRC32C and CRC32 combined to 64 bits. Both
+     * are hardware accelerated, unlike MD5.
+     */
+    static String hash(byte[] content) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(content);
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        return f("%08x%08x", crc32c.getValue(), crc32.getValue());
+    }
+
+    /** Output stream hashing (as {@code hash}) what's written through it. */
+    static class HashingOutputStream extends FilterOutputStream {
+
+        /** CRC32C so far. */
+        private final CRC32C crc32c = new CRC32C();
+
+        /** CRC32 so far. */
+        private final CRC32 crc32 = new CRC32();
+
+        /** Constructor. */
+        HashingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            crc32c.update(b);
+            crc32.update(b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc32c.update(b, off, len);
+            crc32.update(b, off, len);
+            out.write(b, off, len);
+        }
+
+        /** Get hash of everything written so far. */
+        String getHash() {
+            return f("%08x%08x", crc32c.getValue(), crc32.getValue());
+        }
+    }
+
+    /** Helper interface: content comparison, may fail on IO. */
+    private interface ContentCheck {
+
+        /** Same content? */
+        boolean isSame() throws IOException;
+    }
+
+    /** Helper: compare file contents, stop at the first difference. */
+    private static boolean hasContent(Path output, byte[] content) throws IOException {
+        byte[] buffer = new byte[COMPARE_BUFFER_SIZE];
+        int offset = 0;
+        try (InputStream in = Files.newInputStream(output)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (offset + read > content.length
+                    || !Arrays.equals(buffer, 0, read, content, offset, offset + read)) {
+                    return false;
+                }
+                offset += read;
+            }
+        }
+        return offset == content.length;
+    }
+
+    /** Helper: compare contents of two files, stop at the first difference. */
+    private static boolean hasSameContent(Path output, Path staged) throws IOException {
+        byte[] buffer = new byte[COMPARE_BUFFER_SIZE];
+        byte[] stagedBuffer = new byte[COMPARE_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(output);
+             InputStream stagedIn = Files.newInputStream(staged)) {
+            while (true) {
+                int read = in.readNBytes(buffer, 0, buffer.length);
+                int stagedRead = stagedIn.readNBytes(stagedBuffer, 0, stagedBuffer.length);
+                if (read != stagedRead || !Arrays.equals(buffer, 0, read, stagedBuffer, 0, read)) {
+                    return false;
+                }
+                if (read < buffer.length) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /** Helper: new entry. */
+    private static Entry newEntry(BasicFileAttributes attributes, String hash) {
+        Entry entry = new Entry();
+        entry.size = attributes.size();
+        entry.modified = attributes.lastModifiedTime().toMillis();
+        entry.hash = hash;
+        return entry;
+    }
+
+    /** Helper: manifest key of output. */
+    private static String keyOf(Path output) {
+        return output.toAbsolutePath().normalize().toString();
+    }
+}
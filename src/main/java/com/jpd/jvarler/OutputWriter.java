@@ -0,0 +1,316 @@
+package com.jpd.jvarler;
+
+import com.jpd.utils.LoggingUtils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Staged output writer. Outputs are staged to temp files next to
+ * their destinations while rendering, and only moved in place (by
+ * atomic renames) once everything rendered. Existing outputs are
+ * backed up (hard linked) before, and restored if any move fails. A
+ * failed run leaves existing outputs untouched.
+ * <p>
+ * Staging is safe across render threads, committing and aborting
+ * are not.
+ */
+class OutputWriter {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(OutputWriter.class);
+
+    /** Temp file suffix. */
+    private static final String TEMP_SUFFIX = ".jvtmp";
+
+    /** Backup file suffix. */
+    private static final String BACKUP_SUFFIX = ".jvbak";
+
+    /** Output manifest, updated on commit. */
+    private final OutputManifest outputManifest;
+
+    /** Sync staged outputs to disk before committing. */
+    private final boolean fsync;
+
+    /** Directories created by us, removed again on abort if empty. */
+    private final List<Path> createdDirs = new ArrayList<>();
+
+    /** Staged outputs, in order. */
+    private final Queue<Staged> staged = new ConcurrentLinkedQueue<>();
+
+    /** Helper class: a staged output. */
+    private static class Staged {
+
+        /** Temp file. */
+        private final Path temp;
+
+        /** Final destination. */
+        private final Path destination;
+
+        /** Content hash. */
+        private final String hash;
+
+        /** Constructor. */
+        private Staged(Path temp, Path destination, String hash) {
+            this.temp = temp;
+            this.destination = destination;
+            this.hash = hash;
+        }
+    }
+
+    /** Constructor. */
+    OutputWriter(OutputManifest outputManifest, boolean fsync) {
+        this.outputManifest = outputManifest;
+        this.fsync = fsync;
+    }
+
+    /** Create parent directories of all {@code outputs} up front, each
+     * once, rather than racing per output.
+     */
+    void createDirectories(Collection<String> outputs) {
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (String output : outputs) {
+            Path dir = Path.of(output).toAbsolutePath().normalize().getParent();
+            if (dir != null) {
+                dirs.add(dir);
+            }
+        }
+        try {
+            for (Path dir : dirs) {
+                // Remember the top most missing dir, so aborts can clean up.
+                Path missing = null;
+                for (Path parent = dir; parent != null && !Files.exists(parent); parent = parent.getParent()) {
+                    missing = parent;
+                }
+                if (missing != null) {
+                    Files.createDirectories(dir);
+                    for (Path created = dir; !created.equals(missing.getParent()); created = created.getParent()) {
+                        createdDirs.add(created);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Stage {@code content} for {@code destination}. Symlinked
+     * destinations are written through, as before. Returns the
+     * staged temp file.
+     */
+    Path stage(Path destination, byte[] content, String hash) throws IOException {
+        Path target = resolveTarget(destination);
+        Path temp = newTemp(target, hash);
+        Files.write(temp, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        keepPermissions(target, temp);
+        return temp;
+    }
+
+    /** Stage a copy of {@code staged} (as returned by {@code stage})
+     * for {@code destination}. Copied in kernel space (zero-copy), or
+     * hard linked if {@code hardLink} and the file system allows.
+     */
+    void stageCopy(Path staged, Path destination, String hash, boolean hardLink) throws IOException {
+        Path target = resolveTarget(destination);
+        Path temp = newTemp(target, hash);
+        if (hardLink) {
+            try {
+                Files.createLink(temp, staged);
+                return;
+            } catch (IOException | UnsupportedOperationException ex) {
+                // E.g. across file systems, copy instead.
+                log.fine(f("Could not hard link %s, copying: %s", destination, ex.getMessage()));
+            }
+        }
+        try (FileChannel in = FileChannel.open(staged, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+        keepPermissions(target, temp);
+    }
+
+    /** Commit all staged outputs: (optionally) sync them as a group,
+     * back up existing outputs, then move each in place. If any move
+     * fails, outputs already moved are restored from their backups (or
+     * removed, if new) and all remaining staged outputs discarded.
+     */
+    void commit() {
+        long start = System.nanoTime();
+        List<Staged> toCommit = new ArrayList<>(staged);
+        Map<Path, Path> backups = new HashMap<>();
+        List<Staged> committed = new ArrayList<>();
+        try {
+            if (fsync) {
+                for (Staged output : toCommit) {
+                    try (FileChannel channel = FileChannel.open(output.temp, StandardOpenOption.WRITE)) {
+                        channel.force(true);
+                    }
+                }
+            }
+            for (Staged output : toCommit) {
+                if (!backups.containsKey(output.destination) && Files.exists(output.destination)) {
+                    backups.put(output.destination, backup(output.destination));
+                }
+            }
+            for (Staged output : toCommit) {
+                Files.move(output.temp, output.destination,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                committed.add(output);
+            }
+            for (Staged output : committed) {
+                outputManifest.record(output.destination, output.hash);
+            }
+            if (fsync) {
+                syncDirectories(toCommit);
+            }
+        } catch (IOException ex) {
+            restore(committed, backups);
+            removeBackups(backups);
+            abort();
+            throw new RuntimeException(ex);
+        }
+        removeBackups(backups);
+        log.info(f("Committed %d output(s) in %dms%s.", toCommit.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), fsync ? " (synced)" : ""));
+    }
+
+    /** Discard any staged outputs and any directories created. */
+    void abort() {
+        for (Staged output : staged) {
+            try {
+                Files.deleteIfExists(output.temp);
+            } catch (IOException ex) {
+                log.warning(f("Failed removing staged output: %s", output.temp));
+            }
+        }
+        staged.clear();
+        // Deepest first, parents are only empty once their children are gone.
+        List<Path> dirs = new ArrayList<>(createdDirs);
+        dirs.sort(Comparator.comparing(Path::getNameCount).reversed());
+        for (Path dir : dirs) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (IOException ex) {
+                // Not empty, leave as is.
+            }
+        }
+        createdDirs.clear();
+    }
+
+    /** Helper: back up {@code destination} next to it. Hard linked,
+     * renaming the staged output in place leaves the link intact.
+     * Copied if the file system doesn't allow hard links.
+     */
+    private Path backup(Path destination) throws IOException {
+        Path backup = destination.resolveSibling(
+            f(".%s.%s%s", destination.getFileName(), UUID.randomUUID(), BACKUP_SUFFIX));
+        try {
+            Files.createLink(backup, destination);
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.fine(f("Could not hard link %s, copying: %s", destination, ex.getMessage()));
+            Files.copy(destination, backup, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        return backup;
+    }
+
+    /** Helper: undo {@code committed} outputs, latest first. Restored
+     * from backups, new outputs are removed.
+     */
+    private void restore(List<Staged> committed, Map<Path, Path> backups) {
+        Set<Path> restored = new HashSet<>();
+        for (int i = committed.size() - 1; i >= 0; i--) {
+            Path destination = committed.get(i).destination;
+            if (!restored.add(destination)) {
+                continue;
+            }
+            Path backup = backups.remove(destination);
+            try {
+                if (backup != null) {
+                    Files.move(backup, destination,
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.deleteIfExists(destination);
+                }
+            } catch (IOException ex) {
+                log.severe(f("Failed restoring %s: %s", destination, ex.getMessage()));
+            }
+        }
+    }
+
+    /** Helper: remove (remaining) backups. */
+    private void removeBackups(Map<Path, Path> backups) {
+        for (Path backup : backups.values()) {
+            try {
+                Files.deleteIfExists(backup);
+            } catch (IOException ex) {
+                log.warning(f("Failed removing backup: %s", backup));
+            }
+        }
+        backups.clear();
+    }
+
+    /** Sync directories of committed outputs, making renames durable.
+     * Best effort, not all platforms support syncing directories.
+     */
+    private void syncDirectories(List<Staged> committed) {
+        Set<Path> dirs = new LinkedHashSet<>();
+        committed.forEach(output -> dirs.add(output.destination.toAbsolutePath().getParent()));
+        for (Path dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException ex) {
+                log.fine(f("Could not sync directory: %s", dir));
+            }
+        }
+    }
+
+    /** Helper: resolve symlinked destinations to their target. */
+    private static Path resolveTarget(Path destination) throws IOException {
+        return Files.isSymbolicLink(destination) ? destination.toRealPath() : destination;
+    }
+
+    /** Helper: new temp file path next to target, registered as staged
+     * before being written, so aborts clean up partial writes too.
+     */
+    private Path newTemp(Path target, String hash) {
+        Path temp = target.resolveSibling(f(".%s.%s%s", target.getFileName(), UUID.randomUUID(), TEMP_SUFFIX));
+        staged.add(new Staged(temp, target, hash));
+        return temp;
+    }
+
+    /** Helper: renaming replaces the file, keep its permissions. */
+    private static void keepPermissions(Path target, Path temp) throws IOException {
+        if (Files.exists(target) && supportsPosix()) {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        }
+    }
+
+    /** Helper: POSIX permissions supported? */
+    private static boolean supportsPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+}
@@ -0,0 +1,219 @@
+package com.jpd.jvarler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Page analysis. A cheap scan of a raw page for the top level keys its
+ * jinja expressions read and the top level keys it defines. Used to
+ * find pages that can be rendered without (concurrently with) earlier
+ * pages.
+ * <p>
+ * The scan is conservative: whatever can't be told from the text
+ * (included templates, generated keys, ...) is unknown, i.e. reads or
+ * defines anything. Keys whose values hold `${}` references are
+ * unstable: they may change whenever a later page is resolved.
+ */
+class PageAnalysis {
+
+    /** Jinja expressions and statements. */
+    private static final Pattern JINJA_PATTERN = Pattern.compile("\\{\\{(.*?)\\}\\}|\\{%(.*?)%\\}", Pattern.DOTALL);
+
+    /** Jinja comments. */
+    private static final Pattern JINJA_COMMENT_PATTERN = Pattern.compile("\\{#.*?#\\}", Pattern.DOTALL);
+
+    /** A line holding a single jinja statement, nothing else. */
+    private static final Pattern STATEMENT_LINE_PATTERN = Pattern.compile("\\{%(?:(?!%\\}).)*%\\}\\s*");
+
+    /** Tags pulling in other templates. */
+    private static final Pattern DEPENDENCY_TAG_PATTERN =
+        Pattern.compile("\\{%-?\\s*(include|import|from|extends)\\b");
+
+    /** String literals within jinja. */
+    private static final Pattern STRING_PATTERN = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+
+    /** Names within jinja, not attributes (no leading dot). */
+    private static final Pattern NAME_PATTERN = Pattern.compile("(?<![.\\w])[A-Za-z_]\\w*");
+
+    /** Top level keys, plain or quoted. */
+    private static final Pattern KEY_PATTERN =
+        Pattern.compile("(?:\"((?:[^\"\\\\]|\\\\.)*)\"|'([^']*)'|([^\\s\"'{}\\[\\],&*!|>%@`?#-][^:#]*?))\\s*:(?=\\s|$)");
+
+    /** Names read, null if unknown. */
+    private final Set<String> reads;
+
+    /** Keys defined, null if unknown. */
+    private final Set<String> defines;
+
+    /** Keys defined with references, null if unknown. */
+    private final Set<String> unstable;
+
+    /** Constructor. */
+    private PageAnalysis(Set<String> reads, Set<String> defines, Set<String> unstable) {
+        this.reads = reads;
+        this.defines = defines;
+        this.unstable = unstable;
+    }
+
+    /** Analyse page, i.e. the pages of all configs with that page number. */
+    static PageAnalysis of(List<PageSplitter.Page> pages) {
+        Set<String> reads = new HashSet<>();
+        Set<String> defines = new HashSet<>();
+        Set<String> unstable = new HashSet<>();
+        for (PageSplitter.Page page : pages) {
+            PageAnalysis analysis = of(page.getText());
+            reads = union(reads, analysis.reads);
+            defines = union(defines, analysis.defines);
+            unstable = union(unstable, analysis.unstable);
+        }
+        return new PageAnalysis(reads, defines, unstable);
+    }
+
+    /** Analyse page text. */
+    static PageAnalysis of(String text) {
+        text = JINJA_COMMENT_PATTERN.matcher(text).replaceAll("");
+        if (DEPENDENCY_TAG_PATTERN.matcher(text).find()) {
+            return new PageAnalysis(null, null, null);
+        }
+
+        Set<String> reads = new HashSet<>();
+        Matcher jinja = JINJA_PATTERN.matcher(text);
+        while (jinja.find()) {
+            String expression = jinja.group(1) != null ? jinja.group(1) : jinja.group(2);
+            Matcher name = NAME_PATTERN.matcher(STRING_PATTERN.matcher(expression).replaceAll(""));
+            while (name.find()) {
+                reads.add(name.group());
+            }
+        }
+
+        // Keys start at column 0, anything indented belongs to the key
+        // above. Jinja statements on their own line define nothing, o/w
+        // whatever follows a statement is unknown.
+        Set<String> defines = new HashSet<>();
+        Set<String> unstable = new HashSet<>();
+        String current = null;
+        for (String line : text.split("\n")) {
+            if (line.isEmpty() || STATEMENT_LINE_PATTERN.matcher(line).matches()) {
+                continue;
+            }
+            if (line.startsWith("{%")) {
+                defines = null;
+                current = null;
+                continue;
+            }
+            if (Character.isWhitespace(line.charAt(0))) {
+                if (current != null && line.contains("${")) {
+                    unstable.add(current);
+                }
+                continue;
+            }
+            Matcher key = KEY_PATTERN.matcher(line);
+            current = null;
+            if (!key.lookingAt()) {
+                defines = null;
+                continue;
+            }
+            String name = key.group(1) != null ? key.group(1) : key.group(2) != null ? key.group(2) : key.group(3);
+            if (name.contains("{{") || name.equals("<<")) {
+                defines = null;
+                continue;
+            }
+            if (defines != null) {
+                defines.add(name);
+            }
+            current = name;
+            if (line.substring(key.end()).contains("${")) {
+                unstable.add(name);
+            }
+        }
+        if (defines == null && text.contains("${")) {
+            unstable = null;
+        }
+        return new PageAnalysis(reads, defines, unstable);
+    }
+
+    /** Get dependencies per page number, i.e. the earlier pages a page
+     * must be rendered after. Page 0 is rendered first, so no page lists
+     * it. Names in {@code pendingKeys} are taken as unstable (holding
+     * references still unresolved after page 0).
+     * <p>
+     * A page depends on earlier pages defining any name it reads. A
+     * page reading an unstable key depends on all earlier pages (any
+     * may resolve it) and its own keys are unstable in turn.
+     */
+    static List<Set<Integer>> getDependencies(List<PageAnalysis> pages, Set<String> pendingKeys) {
+        List<Set<Integer>> dependencies = new ArrayList<>();
+        dependencies.add(Collections.emptySet());
+        Set<String> unstable = new HashSet<>(pendingKeys);
+        boolean unstableUnknown = false;
+        for (int pageNo = 1; pageNo < pages.size(); pageNo++) {
+            PageAnalysis page = pages.get(pageNo);
+            boolean readsUnstable = page.reads == null || unstableUnknown || !Collections.disjoint(page.reads, unstable);
+            Set<Integer> myDependencies = new TreeSet<>();
+            for (int earlierNo = 1; earlierNo < pageNo; earlierNo++) {
+                PageAnalysis earlier = pages.get(earlierNo);
+                if (readsUnstable || earlier.defines == null || !Collections.disjoint(page.reads, earlier.defines)) {
+                    myDependencies.add(earlierNo);
+                }
+            }
+            dependencies.add(myDependencies);
+
+            if (readsUnstable) {
+                if (page.defines == null) {
+                    unstableUnknown = true;
+                } else {
+                    unstable.addAll(page.defines);
+                }
+            }
+            if (page.unstable == null) {
+                unstableUnknown = true;
+            } else {
+                unstable.addAll(page.unstable);
+            }
+        }
+        return dependencies;
+    }
+
+    /** Get critical path length, in pages (including page 0). */
+    static int getCriticalPath(List<Set<Integer>> dependencies) {
+        int[] lengths = new int[dependencies.size()];
+        int critical = 0;
+        for (int pageNo = 0; pageNo < lengths.length; pageNo++) {
+            int longest = pageNo > 0 ? lengths[0] : 0;
+            for (int dependency : dependencies.get(pageNo)) {
+                longest = Math.max(longest, lengths[dependency]);
+            }
+            lengths[pageNo] = longest + 1;
+            critical = Math.max(critical, lengths[pageNo]);
+        }
+        return critical;
+    }
+
+    /** Describe dependencies, e.g. `1<-[0] 2<-[1]`. */
+    static String describe(List<Set<Integer>> dependencies) {
+        List<String> edges = new ArrayList<>();
+        for (int pageNo = 1; pageNo < dependencies.size(); pageNo++) {
+            Set<Integer> myDependencies = dependencies.get(pageNo);
+            edges.add(f("%d<-%s", pageNo, myDependencies.isEmpty() ? "[0]" : myDependencies.stream()
+                .map(String::valueOf).collect(Collectors.joining(",", "[", "]"))));
+        }
+        return String.join(" ", edges);
+    }
+
+    /** Helper: union of sets, null (unknown) if either is. */
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        a.addAll(b);
+        return a;
+    }
+}
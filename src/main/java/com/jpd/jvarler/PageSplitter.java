@@ -0,0 +1,225 @@
+package com.jpd.jvarler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Page splitter. Memory maps a config and finds its pages (split at
+ * `---` lines) without reading it into lines. Pages are read through
+ * a stream over the mapped file, skipping comment and blank lines and
+ * joining the remaining lines with newlines, so only the page being
+ * loaded is ever held as text (if at all).
+ */
+class PageSplitter {
+
+    /** Private constructor. */
+    private PageSplitter() {
+    }
+
+    /** A page of a config, a range of the mapped config. */
+    static class Page {
+
+        /** Mapped page (including comment and blank lines). */
+        private final ByteBuffer buffer;
+
+        /** Constructor. */
+        private Page(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /** Get reader over page content. */
+        Reader newReader() {
+            return new InputStreamReader(new PageInputStream(buffer.duplicate()), StandardCharsets.UTF_8);
+        }
+
+        /** Does the page hold any jinja (`{{`, `{%` or `{#`)? Comment
+         * lines are not skipped, so may be true for static pages.
+         */
+        boolean hasJinja() {
+            for (int pos = 0; pos < buffer.limit() - 1; pos++) {
+                if (buffer.get(pos) == '{') {
+                    byte next = buffer.get(pos + 1);
+                    if (next == '{' || next == '%' || next == '#') {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Get page content as text. */
+        String getText() {
+            try (InputStream in = new PageInputStream(buffer.duplicate())) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /** Split config at {@code path} into pages, by page number. Fails on
+     * pages larger than {@code maxPageSize} bytes (if positive).
+     */
+    static List<Page> split(String path, long maxPageSize) {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new RuntimeException(f("Config too large: %s", path));
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        // A page exists if any line (even blank) was read for it, as
+        // with the `---` line ending it.
+        List<Page> pages = new ArrayList<>();
+        int size = mapped.limit();
+        int pageStart = 0;
+        int pos = 0;
+        while (pos < size) {
+            int end = lineEnd(mapped, pos, size);
+            int next = nextLine(mapped, end, size);
+            if (end - pos == 3 && mapped.get(pos) == '-' && mapped.get(pos + 1) == '-' && mapped.get(pos + 2) == '-') {
+                pages.add(newPage(mapped, pageStart, pos, maxPageSize, path, pages.size()));
+                pageStart = next;
+            }
+            pos = next;
+        }
+        if (pageStart < size) {
+            pages.add(newPage(mapped, pageStart, size, maxPageSize, path, pages.size()));
+        }
+        return pages;
+    }
+
+    /** Helper: new page of range, checking its size. */
+    private static Page newPage(ByteBuffer mapped, int start, int end, long maxPageSize, String path, int pageNo) {
+        if (maxPageSize > 0 && end - start > maxPageSize) {
+            throw new RuntimeException(f(
+                "Page %d of %s exceeds maximum page size: %d > %d bytes.", pageNo, path, end - start, maxPageSize));
+        }
+        return new Page(mapped.duplicate().position(start).limit(end).slice());
+    }
+
+    /** Helper: end of line starting at {@code pos} (excl. terminator). */
+    private static int lineEnd(ByteBuffer buffer, int pos, int limit) {
+        int end = pos;
+        while (end < limit && buffer.get(end) != '\n' && buffer.get(end) != '\r') {
+            end++;
+        }
+        return end;
+    }
+
+    /** Helper: start of next line, after terminator at {@code end}. */
+    private static int nextLine(ByteBuffer buffer, int end, int limit) {
+        if (end >= limit) {
+            return limit;
+        }
+        if (buffer.get(end) == '\r' && end + 1 < limit && buffer.get(end + 1) == '\n') {
+            return end + 2;
+        }
+        return end + 1;
+    }
+
+    /** Helper: is line blank or a comment? I.e. stripped, empty or
+     * starting with `#`. Leading (unicode) whitespace is decoded
+     * from UTF-8 as needed.
+     */
+    private static boolean isSkipped(ByteBuffer buffer, int pos, int end) {
+        while (pos < end) {
+            int b = buffer.get(pos) & 0xff;
+            int codePoint = b;
+            int length = 1;
+            if (b >= 0xe0 && b < 0xf0 && pos + 2 < end) {
+                codePoint = ((b & 0x0f) << 12) | ((buffer.get(pos + 1) & 0x3f) << 6) | (buffer.get(pos + 2) & 0x3f);
+                length = 3;
+            } else if (b >= 0xc0 && b < 0xe0 && pos + 1 < end) {
+                codePoint = ((b & 0x1f) << 6) | (buffer.get(pos + 1) & 0x3f);
+                length = 2;
+            }
+            if (!Character.isWhitespace(codePoint)) {
+                return b == '#';
+            }
+            pos += length;
+        }
+        return true;
+    }
+
+    /** Helper class: stream of page content. Skips comment and blank
+     * lines, joins the remaining with newlines (no trailing newline).
+     */
+    private static class PageInputStream extends InputStream {
+
+        /** Page. */
+        private final ByteBuffer buffer;
+
+        /** Position in page. */
+        private int pos;
+
+        /** End of line being read, -1 if between lines. */
+        private int lineEnd = -1;
+
+        /** Newline pending before line being read. */
+        private boolean newlinePending;
+
+        /** Any line read yet? */
+        private boolean anyLine;
+
+        /** Constructor. */
+        private PageInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int limit = buffer.limit();
+            int read = 0;
+            while (read < len) {
+                if (lineEnd < 0) {
+                    if (pos >= limit) {
+                        break;
+                    }
+                    int end = lineEnd(buffer, pos, limit);
+                    if (isSkipped(buffer, pos, end)) {
+                        pos = nextLine(buffer, end, limit);
+                        continue;
+                    }
+                    lineEnd = end;
+                    newlinePending = anyLine;
+                    anyLine = true;
+                }
+                if (newlinePending) {
+                    b[off + read++] = '\n';
+                    newlinePending = false;
+                    continue;
+                }
+                int count = Math.min(len - read, lineEnd - pos);
+                buffer.position(pos);
+                buffer.get(b, off + read, count);
+                read += count;
+                pos += count;
+                if (pos == lineEnd) {
+                    pos = nextLine(buffer, lineEnd, limit);
+                    lineEnd = -1;
+                }
+            }
+            return read == 0 && len > 0 ? -1 : read;
+        }
+    }
+}
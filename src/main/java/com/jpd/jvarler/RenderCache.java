@@ -0,0 +1,213 @@
+package com.jpd.jvarler;
+
+import com.jpd.jinjava.TemplateCache;
+import com.jpd.serialiser.ISerialiser;
+import com.jpd.serialiser.JSONSerialiser;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.jpd.utils.JVarlerUtils.f;
+import static com.jpd.utils.JVarlerUtils.getHash;
+import static com.jpd.utils.JVarlerUtils.j;
+
+/** Content addressed on-disk cache of rendered outputs. Keyed by
+ * hash of jinjava config, template source and effective bindings
+ * (global bindings + destination variables), so outputs rendered
+ * before (e.g. on another branch or with other overrides) are
+ * reused across runs.
+ * <p>
+ * Entries are files under the cache dir, last access is tracked
+ * via modification time. Once a run is done, least recently used
+ * entries are evicted down to the maximum size.
+ * <p>
+ * Safe to use across render threads and concurrent runs.
+ */
+class RenderCache {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(RenderCache.class);
+
+    /** Serialiser, sorted keys keep binding hashes stable. */
+    private static final ISerialiser serialiser = new JSONSerialiser();
+
+    /** Cache dir. */
+    private final Path dir;
+
+    /** Maximum size in bytes. */
+    private final long maxBytes;
+
+    /** Hash of jinjava config and global bindings. Global bindings
+     * are the same for every destination, serialise them once.
+     */
+    private final String globalHash;
+
+    /** Cache hits. */
+    private final LongAdder hits = new LongAdder();
+
+    /** Cache misses. */
+    private final LongAdder misses = new LongAdder();
+
+    /** A cached render. Public fields for (de)serialisation. */
+    public static class Entry {
+
+        /** Rendered output. */
+        public String output;
+
+        /** Binding paths read while rendering. */
+        public List<List<String>> reads = new ArrayList<>();
+    }
+
+    /** Helper class: an entry on disk, used for eviction. */
+    private static class StoredEntry {
+
+        /** Entry path. */
+        private final Path path;
+
+        /** Last used. */
+        private final FileTime lastUsed;
+
+        /** Size in bytes. */
+        private final long size;
+
+        /** Constructor. */
+        private StoredEntry(Path path, FileTime lastUsed, long size) {
+            this.path = path;
+            this.lastUsed = lastUsed;
+            this.size = size;
+        }
+    }
+
+    /** Constructor. */
+    RenderCache(String dir, long maxBytes, TemplateCache templateCache, Map<String, Object> globalBindings) {
+        this.dir = Path.of(dir);
+        this.maxBytes = maxBytes;
+        this.globalHash = hash(j("\n",
+            templateCache.getConfigFingerprint(), serialiser.toJSONStringJackson(globalBindings)));
+        try {
+            Files.createDirectories(this.dir);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Get cache key of rendering {@code template} with {@code variables}
+     * overlaid on global bindings. Null if not cacheable, i.e. if the
+     * template pulls in other templates (not covered by its hash).
+     */
+    String getKey(TemplateCache.Template template, Map<String, Object> variables) {
+        if (template.hasDependencies()) {
+            return null;
+        }
+        return hash(j("\n", globalHash, template.getHash(), serialiser.toJSONStringJackson(variables)));
+    }
+
+    /** Get cached render, null on miss. */
+    Entry get(String key) {
+        Path path = pathOf(key);
+        try {
+            Entry entry = serialiser.fromJSONStringJackson(Files.readString(path), Entry.class);
+            // Mark as recently used.
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.increment();
+            return entry;
+        } catch (NoSuchFileException ex) {
+            misses.increment();
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            log.warning(f("Ignoring unreadable render cache entry %s: %s", path, ex.getMessage()));
+            misses.increment();
+            return null;
+        }
+    }
+
+    /** Put render. Written to a temp file and moved in place, so
+     * concurrent readers never see partial entries.
+     */
+    void put(String key, Entry entry) {
+        Path path = pathOf(key);
+        try {
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), key, ".tmp");
+            Files.writeString(temp, serialiser.toJSONStringJackson(entry));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Evict least recently used entries down to maximum size. */
+    void evict() {
+        List<Path> entries;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            // Entries live in sub dirs, anything else in the dir isn't ours.
+            entries = walk
+                .filter(path -> Files.isRegularFile(path) && !path.getParent().equals(dir))
+                .collect(Collectors.toList());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        List<StoredEntry> stored = new ArrayList<>();
+        long total = 0;
+        for (Path entry : entries) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                stored.add(new StoredEntry(entry, attributes.lastModifiedTime(), attributes.size()));
+                total += attributes.size();
+            } catch (IOException ex) {
+                // Gone, e.g. evicted by a concurrent run.
+            }
+        }
+        stored.sort(Comparator.comparing(x -> x.lastUsed));
+
+        int evicted = 0;
+        for (StoredEntry entry : stored) {
+            if (total <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(entry.path);
+                total -= entry.size;
+                evicted++;
+            } catch (IOException ex) {
+                // Try the next one.
+            }
+        }
+        log.info(f("Render cache: entries=%d size=%dKB evicted=%d",
+            stored.size() - evicted, total / 1024, evicted));
+    }
+
+    /** Log hit rate. */
+    void logStats() {
+        long myHits = hits.sum();
+        long total = myHits + misses.sum();
+        log.info(f("Render cache: hits=%d misses=%d hitRate=%.1f%%",
+            myHits, total - myHits, total > 0 ? 100.0 * myHits / total : 0.0));
+    }
+
+    /** Helper: entry path of key, fanned out over sub dirs. */
+    private Path pathOf(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /** Helper: hash string. */
+    private static String hash(String value) {
+        return getHash(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
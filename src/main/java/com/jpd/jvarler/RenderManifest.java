@@ -0,0 +1,204 @@
+package com.jpd.jvarler;
+
+import com.jpd.jinjava.TemplateCache;
+import com.jpd.serialiser.ISerialiser;
+import com.jpd.serialiser.JSONSerialiser;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.f;
+import static com.jpd.utils.JVarlerUtils.getHash;
+import static java.nio.file.Files.writeString;
+
+/** Render manifest, used for incremental rendering. Per destination,
+ * holds the template hash and the hashes of all binding values the
+ * template read when last rendered. A destination whose template and
+ * read values are unchanged (and whose outputs still exist) renders
+ * the same output again, so it is skipped.
+ * <p>
+ * Kept as a sidecar file next to the exports, or in memory only (e.g.
+ * in watch mode). Safe to use across render threads.
+ */
+class RenderManifest {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(RenderManifest.class);
+
+    /** Serialiser, sorted keys keep value hashes stable. */
+    private static final ISerialiser serialiser = new JSONSerialiser();
+
+    /** Manifest file path, null if not persisted. */
+    private final Path path;
+
+    /** Entries by destination. */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Hashes of global (i.e. not overlaid) values by path. Global
+     * values are the same across destinations, hash each once.
+     */
+    private final Map<List<String>, String> globalHashes = new ConcurrentHashMap<>();
+
+    /** Destinations skipped. */
+    private final LongAdder skipped = new LongAdder();
+
+    /** Destinations rendered. */
+    private final LongAdder rendered = new LongAdder();
+
+    /** A manifest entry. Public fields for (de)serialisation. */
+    public static class Entry {
+
+        /** Template hash. */
+        public String template;
+
+        /** Value hashes read. */
+        public List<Read> reads = new ArrayList<>();
+    }
+
+    /** A binding read. Public fields for (de)serialisation. */
+    public static class Read {
+
+        /** Binding path. */
+        public List<String> path;
+
+        /** Hash of value at path. */
+        public String hash;
+    }
+
+    /** Manifest file layout. */
+    public static class Layout {
+
+        /** Entries by destination. */
+        public Map<String, Entry> destinations = new TreeMap<>();
+    }
+
+    /** Constructor. */
+    private RenderManifest(Path path) {
+        this.path = path;
+    }
+
+    /** Load manifest from path. Missing or unreadable manifests
+     * result in an empty manifest, i.e. everything is rendered. If
+     * {@code path} is null, the manifest is kept in memory only.
+     */
+    static RenderManifest load(String path) {
+        RenderManifest manifest = new RenderManifest(path != null ? Path.of(path) : null);
+        if (manifest.path != null && Files.exists(manifest.path)) {
+            try {
+                Layout layout = serialiser.fromJSONStringJackson(Files.readString(manifest.path), Layout.class);
+                manifest.entries.putAll(layout.destinations);
+            } catch (IOException | RuntimeException ex) {
+                manifest.log.warning(f("Ignoring unreadable render manifest %s: %s", path, ex.getMessage()));
+            }
+        }
+        return manifest;
+    }
+
+    /** Can rendering {@code destination} be skipped? True if the template
+     * and all values read last time are unchanged and all outputs exist.
+     */
+    boolean isUpToDate(
+        String destination, List<String> outputs, TemplateCache.Template template,
+        Map<String, Object> bindings, Set<String> localKeys) {
+        Entry entry = entries.get(destination);
+        boolean upToDate = entry != null
+            && !template.hasDependencies()
+            && template.getHash().equals(entry.template)
+            && outputs.stream().allMatch(output -> Files.exists(Path.of(output)))
+            && entry.reads.stream().allMatch(
+                read -> read.hash.equals(hashAt(read.path, bindings, localKeys)));
+        (upToDate ? skipped : rendered).increment();
+        return upToDate;
+    }
+
+    /** Record reads of a render of {@code destination}. */
+    void record(
+        String destination, TemplateCache.Template template, Collection<List<String>> reads,
+        Map<String, Object> bindings, Set<String> localKeys) {
+        Entry entry = new Entry();
+        entry.template = template.getHash();
+        for (List<String> readPath : reads) {
+            Read read = new Read();
+            read.path = readPath;
+            read.hash = hashAt(readPath, bindings, localKeys);
+            entry.reads.add(read);
+        }
+        entries.put(destination, entry);
+    }
+
+    /** Global bindings changed, forget hashes of global values. */
+    void bindingsChanged() {
+        globalHashes.clear();
+    }
+
+    /** Drop entries of destinations no longer rendered. */
+    void retainAll(Collection<String> destinations) {
+        entries.keySet().retainAll(destinations);
+    }
+
+    /** Write manifest to disk, if persisted. */
+    void save() {
+        if (path != null) {
+            Layout layout = new Layout();
+            layout.destinations.putAll(entries);
+            try {
+                writeString(path, serialiser.toJSONStringJackson(layout));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        log.info(f("Incremental: skipped=%d rendered=%d", skipped.sumThenReset(), rendered.sumThenReset()));
+    }
+
+    /** Hash of value at {@code path} in {@code bindings}. Values not
+     * overlaid by {@code localKeys} are global, so hashed once.
+     */
+    private String hashAt(List<String> path, Map<String, Object> bindings, Set<String> localKeys) {
+        if (localKeys.contains(path.get(0))) {
+            return hash(valueAt(path, bindings));
+        }
+        return globalHashes.computeIfAbsent(path, key -> hash(valueAt(key, bindings)));
+    }
+
+    /** Helper: hash any value. */
+    private static String hash(Object value) {
+        return getHash(serialiser.toJSONStringJackson(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Helper: value at path, null if absent. Keys are matched as
+     * strings, as read by templates.
+     */
+    private static Object valueAt(List<String> path, Map<String, Object> bindings) {
+        Object current = bindings;
+        for (String key : path) {
+            if (!(current instanceof Map)) {
+                return null;
+            }
+            Map<?, ?> map = (Map<?, ?>) current;
+            if (map.containsKey(key)) {
+                current = map.get(key);
+                continue;
+            }
+            current = null;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (String.valueOf(entry.getKey()).equals(key)) {
+                    current = entry.getValue();
+                    break;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,177 @@
+package com.jpd.jvarler;
+
+import com.jpd.utils.LoggingUtils;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Render scheduler used by the destination renderer. Keeps
+ * (CPU bound) jinja rendering and (I/O bound) file reads and
+ * writes on separate pools, so slow disks don't starve render
+ * threads and vice versa. Replaces the JVM-wide common pool
+ * previously used via {@code parallelStream()}.
+ * <p>
+ * I/O runs on virtual threads where the JDK supports them.
+ */
+class RenderScheduler implements AutoCloseable {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(RenderScheduler.class);
+
+    /** I/O threads per job if no virtual threads are available. */
+    private static final int IO_THREADS_PER_JOB = 2;
+
+    /** CPU pool, jinja rendering. */
+    private final Pool cpu;
+
+    /** I/O pool, template reads and destination writes. */
+    private final Pool io;
+
+    /** Scheduler start, used for utilisation. */
+    private final long started = System.nanoTime();
+
+    /** Any tasks submitted. */
+    private final List<CompletableFuture<?>> tasks = new ArrayList<>();
+
+    /** Helper class: an instrumented pool. */
+    private static class Pool {
+
+        /** Pool name, used in reporting. */
+        private final String name;
+
+        /** Underlying executor. */
+        private final ExecutorService executor;
+
+        /** Number of threads, null if unbounded (virtual threads). */
+        private final Integer size;
+
+        /** Accumulated busy time across all threads. */
+        private final LongAdder busyNanos = new LongAdder();
+
+        /** Number of tasks run. */
+        private final LongAdder count = new LongAdder();
+
+        /** Constructor. */
+        private Pool(String name, ExecutorService executor, Integer size) {
+            this.name = name;
+            this.executor = executor;
+            this.size = size;
+        }
+
+        /** Wrap a task to account for busy time. */
+        private <T, R> Function<T, R> timed(Function<T, R> task) {
+            return input -> {
+                long start = System.nanoTime();
+                try {
+                    return task.apply(input);
+                } finally {
+                    busyNanos.add(System.nanoTime() - start);
+                    count.increment();
+                }
+            };
+        }
+
+        /** Report utilisation relative to wall time. */
+        private String report(long wallNanos) {
+            double busy = busyNanos.sum();
+            double concurrency = wallNanos > 0 ? busy / wallNanos : 0;
+            String utilisation = size == null
+                ? "n/a (virtual)"
+                : f("%.1f%%", 100 * concurrency / size);
+            return f("Pool %s: threads=%s tasks=%d busy=%dms avgConcurrency=%.2f utilisation=%s",
+                name, size == null ? "virtual" : size, count.sum(),
+                TimeUnit.NANOSECONDS.toMillis((long) busy), concurrency, utilisation);
+        }
+    }
+
+    /** Constructor. Runs on {@code jobs} render threads. */
+    RenderScheduler(int jobs) {
+        jobs = Math.max(1, jobs);
+        cpu = new Pool("render", Executors.newFixedThreadPool(jobs, threadFactory("jv-render-")), jobs);
+        ExecutorService virtual = jobs > 1 ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            io = new Pool("io", virtual, null);
+        } else {
+            int ioJobs = jobs > 1 ? jobs * IO_THREADS_PER_JOB : 1;
+            io = new Pool("io", Executors.newFixedThreadPool(ioJobs, threadFactory("jv-io-")), ioJobs);
+        }
+    }
+
+    /** Schedule read (I/O) -> render (CPU) -> write (I/O). */
+    <T, R> void submit(Supplier<T> read, Function<T, R> render, Consumer<R> write) {
+        Function<Void, T> timedRead = io.timed(x -> read.get());
+        Function<R, Void> timedWrite = io.timed(x -> {
+            write.accept(x);
+            return null;
+        });
+        CompletableFuture<Void> task = CompletableFuture
+            .supplyAsync(() -> timedRead.apply(null), io.executor)
+            .thenApplyAsync(cpu.timed(render), cpu.executor)
+            .thenApplyAsync(timedWrite, io.executor);
+        tasks.add(task);
+    }
+
+    /** Wait for all submitted tasks. Rethrows the first failure. */
+    void join() {
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /** Log per pool utilisation. */
+    void logStats() {
+        long wallNanos = System.nanoTime() - started;
+        log.info(f("Scheduler: wall=%dms", TimeUnit.NANOSECONDS.toMillis(wallNanos)));
+        log.info(cpu.report(wallNanos));
+        log.info(io.report(wallNanos));
+    }
+
+    /** Shut down pools. */
+    @Override
+    public void close() {
+        cpu.executor.shutdownNow();
+        io.executor.shutdownNow();
+    }
+
+    /** Named daemon threads. */
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Virtual thread executor if available (JDK 21+), null o/w.
+     * Looked up reflectively since we compile against Java 11.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.jpd.jvarler;
+
+import com.jpd.serialiser.ISerialiser;
+import com.jpd.serialiser.JSONSerialiser;
+import com.jpd.utils.LoggingUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static com.jpd.utils.JVarlerUtils.f;
+import static com.jpd.utils.JVarlerUtils.getHash;
+
+/** Memoised shell outputs, persisted across invocations. Keyed by
+ * command, working dir and selected environment variables. Entries
+ * expire after their time to live.
+ * <p>
+ * Safe to use across shell threads.
+ */
+class ShellCache {
+
+    /** A logger. */
+    private final Logger log = LoggingUtils.getLogger(ShellCache.class);
+
+    /** Serialiser, sorted keys keep cache keys stable. */
+    private static final ISerialiser serialiser = new JSONSerialiser();
+
+    /** Cache file path. */
+    private final Path path;
+
+    /** Entries by key. */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** A cached output. Public fields for (de)serialisation. */
+    public static class Entry {
+
+        /** Command, for troubleshooting. */
+        public String command;
+
+        /** Shell output. */
+        public String output;
+
+        /** Expiry, millis since epoch. */
+        public long expires;
+    }
+
+    /** Cache file layout. */
+    public static class Layout {
+
+        /** Entries by key. */
+        public Map<String, Entry> shells = new TreeMap<>();
+    }
+
+    /** Constructor. */
+    private ShellCache(Path path) {
+        this.path = path;
+    }
+
+    /** Load cache from path. Missing or unreadable caches result in
+     * an empty cache.
+     */
+    static ShellCache load(Path path) {
+        ShellCache cache = new ShellCache(path);
+        if (Files.exists(path)) {
+            try {
+                Layout layout = serialiser.fromJSONStringJackson(Files.readString(path), Layout.class);
+                cache.entries.putAll(layout.shells);
+            } catch (IOException | RuntimeException ex) {
+                cache.log.warning(f("Ignoring unreadable shell cache %s: %s", path, ex.getMessage()));
+            }
+        }
+        return cache;
+    }
+
+    /** Get key of running {@code command} in {@code workingDir}, with
+     * (the current values of) environment variables {@code env}.
+     */
+    static String key(String command, String workingDir, List<String> env) {
+        Map<String, String> envValues = new TreeMap<>();
+        env.forEach(name -> envValues.put(name, System.getenv(name)));
+        String json = serialiser.toJSONStringJackson(List.of(command, workingDir, envValues));
+        return getHash(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Get unexpired output, null if none. */
+    String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expires <= System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.output;
+    }
+
+    /** Put output, expiring after {@code ttl}. */
+    void put(String key, String command, String output, Duration ttl) {
+        Entry entry = new Entry();
+        entry.command = command;
+        entry.output = output;
+        entry.expires = System.currentTimeMillis() + ttl.toMillis();
+        entries.put(key, entry);
+    }
+
+    /** Write unexpired entries to disk. Written to a temp file and
+     * moved in place, concurrent invocations may share a cache.
+     */
+    void save() {
+        long now = System.currentTimeMillis();
+        Layout layout = new Layout();
+        entries.forEach((key, entry) -> {
+            if (entry.expires > now) {
+                layout.shells.put(key, entry);
+            }
+        });
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "shells", ".tmp");
+            Files.writeString(temp, serialiser.toJSONStringJackson(layout));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -8,8 +8,6 @@ import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 
-import static com.jpd.utils.JVarlerUtils.getInnerKeyMatches;
-import static com.jpd.utils.JVarlerUtils.getRelPathMatches;
 import static com.jpd.utils.JVarlerUtils.j;
 
 /** Value resolver for varler syntax. */
@@ -145,6 +143,14 @@ public class ValueResolver extends Resolver {
         preProcessUnresolved(unresolved, new Context());
     }
 
+    /** Pre-process a single unresolved entry before attempting resolution. */
+    @Override
+    protected void preProcessUnresolved(Map<String, Object> container, String key, String parentPath) {
+        Context context = new Context();
+        context.currPath = parentPath;
+        nestIntoUnresolved(context, container, key, key, container.get(key));
+    }
+
     /** Pre-process unresolved values before attempting resolution.
      * Specifically, we escape any local and relative paths to
      * root path equivalents.
@@ -165,43 +171,49 @@ public class ValueResolver extends Resolver {
             }
         } else if (unresolved instanceof String) {
             String string = (String) unresolved;
-            List<String> groups = getRelPathMatches(string);
-            if (groups.isEmpty()) {
-
-                // Local paths must be prefixed with paths one level up.
-                String upDir = context.up(1, true);
-                groups = getInnerKeyMatches(string);
-                if (!groups.isEmpty()) {
-                    for (String group : groups) {
-                        if (group.startsWith("/")) {
-                            // Path already from root.
-                            continue;
-                        }
-                        StringBuilder pathFromRoot = new StringBuilder();
-                        pathFromRoot.append(upDir);
-                        if (!upDir.endsWith(JOINER)) {
-                            pathFromRoot.append(JOINER);
-                        }
-                        pathFromRoot.append(group);
-                        string = string.replace(wrapVar(group), wrapVar(pathFromRoot.toString()));
+            int index = string.indexOf(GENERIC_PREFIX);
+            if (index < 0) {
+                // Nothing to pre-process.
+                return;
+            }
+
+            // Rewrite relative and local paths to root paths, a single
+            // pass over all references (including outer ones of nested
+            // references), no regex involved.
+            StringBuilder builder = new StringBuilder(string.length() + 32);
+            String upDir = null;
+            int copied = 0;
+            while (index >= 0) {
+                int start = index + GENERIC_PREFIX.length();
+                int end = start;
+                while (string.startsWith(RELATIVE_PATH_PREFIX, end)) {
+                    end += RELATIVE_PATH_PREFIX.length();
+                }
+                String pathFromRoot = null;
+                if (end > start) {
+                    // Relative paths are relative to the context one level up.
+                    pathFromRoot = context.cd(RELATIVE_PATH_PREFIX + string.substring(start, end), true);
+                } else if (!string.startsWith(JOINER, start) && string.indexOf(SUFFIX, start) > start) {
+                    // Local paths must be prefixed with paths one level up.
+                    if (upDir == null) {
+                        upDir = context.up(1, true);
+                        upDir = upDir.endsWith(JOINER) ? upDir : upDir + JOINER;
                     }
+                    pathFromRoot = upDir;
                 }
-                context.container.update(string);
-                return;
+                if (pathFromRoot != null) {
+                    builder.append(string, copied, start).append(pathFromRoot);
+                    copied = end;
+                }
+                index = string.indexOf(GENERIC_PREFIX, start);
             }
-            for (String group : groups) {
-                String pathFromRoot = context.cd(RELATIVE_PATH_PREFIX + group, true);
-                string = string.replace(GENERIC_PREFIX + group, GENERIC_PREFIX + pathFromRoot);
-                context.container.update(string);
+            if (copied > 0) {
+                builder.append(string, copied, string.length());
+                context.container.update(builder.toString());
             }
         }
     }
 
-    /** Helper: wrap var. */
-    private String wrapVar(String key) {
-        return GENERIC_PREFIX + key + SUFFIX;
-    }
-
     /** Nest into unresolved collection. Keep track of context. */
     private void nestIntoUnresolved(Context context, Object collection, String relDir, Object key, Object value) {
         context.cd(relDir, false);
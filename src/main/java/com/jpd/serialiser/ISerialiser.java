@@ -1,5 +1,9 @@
 package com.jpd.serialiser;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /** Serialiser interface. Specifically for
  * moving from and to JSON.
  */
@@ -7,4 +11,19 @@ public interface ISerialiser {
 
     /** From JSON string (jackson). */
     <T> T fromJSONStringJackson(String json, Class<T> cls);
+
+    /** To JSON string (jackson). Map keys are sorted (by string form), so
+     * equal data always serialises to equal strings.
+     */
+    String toJSONStringJackson(Object value);
+
+    /** Write value to {@code out} (jackson), in this serialiser's
+     * encoding. Map keys are sorted. {@code out} is left open.
+     */
+    void write(Object value, OutputStream out) throws IOException;
+
+    /** Read value from {@code buffer} (jackson), in this serialiser's
+     * encoding. Reads from the buffer's position up to its limit.
+     */
+    <T> T read(ByteBuffer buffer, Class<T> cls);
 }
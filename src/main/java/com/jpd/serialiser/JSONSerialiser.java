@@ -1,16 +1,54 @@
 package com.jpd.serialiser;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.PrettyPrinter;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 
-/** JSON serialiser. Handles to and from JSON serialisation. */
+/** JSON serialiser. Handles to and from JSON serialisation.
+ * <p>
+ * Maps are written with keys sorted by their string form. Not left to
+ * jackson's {@code ORDER_MAP_ENTRIES_BY_KEYS}, which sorts through a
+ * {@code TreeMap} and fails on mixed type (or null) keys, as yaml has.
+ */
 public class JSONSerialiser implements ISerialiser {
 
+    /** Pretty printer told the number of entries (values) of each
+     * object (array) before it's started, e.g. to lay out single
+     * entry objects inline.
+     */
+    public interface SizedPrettyPrinter extends PrettyPrinter {
+
+        /** Number of entries (values) of the object (array) started next. */
+        void nextSize(int size);
+    }
+
     /** Jackson instance. */
-    private final ObjectMapper mapper = new ObjectMapper()
-            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final ObjectMapper mapper;
+
+    /** Constructor. */
+    public JSONSerialiser() {
+        this(new JsonFactory());
+    }
+
+    /** Constructor, for JSON-like encodings (e.g. binary JSON). */
+    protected JSONSerialiser(JsonFactory factory) {
+        this.mapper = new ObjectMapper(factory)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
 
     /** From JSON string (jackson). */
     public <T> T fromJSONStringJackson(String json, Class<T> cls) {
@@ -20,4 +58,86 @@ public class JSONSerialiser implements ISerialiser {
             throw new RuntimeException(ex.getMessage());
         }
     }
+
+    /** To JSON string (jackson), keys sorted. */
+    public String toJSONStringJackson(Object value) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(writer)) {
+            writeValue(generator, value, false);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        return writer.toString();
+    }
+
+    /** Write value to stream (jackson), keys sorted. */
+    public void write(Object value, OutputStream out) throws IOException {
+        write(value, out, null, false);
+    }
+
+    /** Write value to stream (jackson), keys sorted, laid out by
+     * {@code prettyPrinter} (compact if null). Map entries with null
+     * values are left out if {@code skipNulls}.
+     */
+    public void write(Object value, OutputStream out, PrettyPrinter prettyPrinter, boolean skipNulls)
+        throws IOException {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            if (prettyPrinter != null) {
+                generator.setPrettyPrinter(prettyPrinter);
+            }
+            writeValue(generator, value, skipNulls);
+        }
+    }
+
+    /** Read value from buffer (jackson). */
+    public <T> T read(ByteBuffer buffer, Class<T> cls) {
+        try {
+            return mapper.readValue(new ByteBufferBackedInputStream(buffer), cls);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /** Helper: write value, maps with keys sorted by string form. */
+    private static void writeValue(JsonGenerator generator, Object value, boolean skipNulls) throws IOException {
+        if (value instanceof Map) {
+            List<Map.Entry<?, ?>> entries = new ArrayList<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!skipNulls || entry.getValue() != null) {
+                    entries.add(entry);
+                }
+            }
+            entries.sort(Comparator.comparing(entry -> String.valueOf(entry.getKey())));
+            nextSize(generator, entries.size());
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : entries) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue(), skipNulls);
+            }
+            generator.writeEndObject();
+        } else if (value instanceof Collection) {
+            nextSize(generator, ((Collection<?>) value).size());
+            generator.writeStartArray();
+            for (Object item : (Collection<?>) value) {
+                writeValue(generator, item, skipNulls);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Object[]) {
+            nextSize(generator, ((Object[]) value).length);
+            generator.writeStartArray();
+            for (Object item : (Object[]) value) {
+                writeValue(generator, item, skipNulls);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeObject(value);
+        }
+    }
+
+    /** Helper: tell a sized pretty printer (if any) what's next. */
+    private static void nextSize(JsonGenerator generator, int size) {
+        if (generator.getPrettyPrinter() instanceof SizedPrettyPrinter) {
+            ((SizedPrettyPrinter) generator.getPrettyPrinter()).nextSize(size);
+        }
+    }
 }
@@ -0,0 +1,29 @@
+package com.jpd.serialiser;
+
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/** Smile (binary JSON) serialiser. Streams ({@code write}, {@code read})
+ * are Smile encoded, strings remain JSON.
+ */
+public class SmileSerialiser extends JSONSerialiser {
+
+    /** JSON serialiser, for strings. */
+    private final JSONSerialiser jsonSerialiser = new JSONSerialiser();
+
+    /** Constructor. */
+    public SmileSerialiser() {
+        super(new SmileFactory());
+    }
+
+    /** From JSON string (jackson). */
+    @Override
+    public <T> T fromJSONStringJackson(String json, Class<T> cls) {
+        return jsonSerialiser.fromJSONStringJackson(json, cls);
+    }
+
+    /** To JSON string (jackson), keys sorted. */
+    @Override
+    public String toJSONStringJackson(Object value) {
+        return jsonSerialiser.toJSONStringJackson(value);
+    }
+}
@@ -0,0 +1,136 @@
+package com.jpd.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.jpd.utils.JVarlerUtils.f;
+
+/** Array strategies per path. A tree of rules by key, so merging
+ * looks up the rule of a list in one hash probe per level. Lists
+ * without a rule are merged as per the default strategy (at root).
+ * <p>
+ * Rules of lists merged by key also apply within their elements, e.g.
+ * a rule for `servers.ports` applies to the `ports` of any element of
+ * `servers`. Immutable once parsed.
+ */
+public final class ArrayRules {
+
+    /** Strategy, null if none (default applies). */
+    private final Mapper.ArrayStrategy strategy;
+
+    /** Key matching elements, if merging by key. */
+    private final String key;
+
+    /** Rules by key, one level down. */
+    private final Map<String, ArrayRules> children = new HashMap<>();
+
+    /** Constructor. */
+    private ArrayRules(Mapper.ArrayStrategy strategy, String key) {
+        this.strategy = strategy;
+        this.key = key;
+    }
+
+    /** Rules applying {@code strategy} to all lists. */
+    public static ArrayRules of(Mapper.ArrayStrategy strategy) {
+        if (strategy == Mapper.ArrayStrategy.MERGE_BY_KEY) {
+            throw new RuntimeException("Merging by key requires a key, declare it per path.");
+        }
+        return new ArrayRules(strategy, null);
+    }
+
+    /** Parse declarations, by path (as per {@code syntax}) e.g.
+     * `{tags: union, servers: {mergeByKey: name}}`. Strategies are
+     * `replace`, `append`, `union` or `mergeByKey` along with the key
+     * matching elements.
+     */
+    public static ArrayRules parse(
+        Map<String, Object> declarations, ImmutableMapper.Syntax syntax, Mapper.ArrayStrategy defaultStrategy) {
+        ArrayRules root = of(defaultStrategy);
+        if (declarations == null) {
+            return root;
+        }
+        declarations.forEach((path, declaration) -> {
+            String key = null;
+            Object name = declaration;
+            if (declaration instanceof Map && ((Map<?, ?>) declaration).size() == 1) {
+                Map.Entry<?, ?> entry = ((Map<?, ?>) declaration).entrySet().iterator().next();
+                name = entry.getKey();
+                key = entry.getValue() != null ? String.valueOf(entry.getValue()) : null;
+            }
+            Mapper.ArrayStrategy myStrategy = parseStrategy(name);
+            if (myStrategy == null || (myStrategy == Mapper.ArrayStrategy.MERGE_BY_KEY) != (key != null)) {
+                throw new RuntimeException(f("Invalid array strategy for %s: %s", path, declaration));
+            }
+            ImmutableMapper.MapPath myPath = ImmutableMapper.MapPath.parse(syntax, path);
+            ArrayRules node = root;
+            for (int i = 0; i < myPath.size() - 1; i++) {
+                node = node.children.computeIfAbsent(myPath.get(i), x -> new ArrayRules(null, null));
+            }
+            ArrayRules rule = new ArrayRules(myStrategy, key);
+            ArrayRules previous = node.children.put(myPath.get(myPath.size() - 1), rule);
+            if (previous != null) {
+                rule.children.putAll(previous.children);
+            }
+        });
+        return root;
+    }
+
+    /** Get rules one level down, at {@code key}. Null if none. */
+    public ArrayRules get(String key) {
+        return children.get(key);
+    }
+
+    /** Get strategy, null if none (default applies). */
+    public Mapper.ArrayStrategy getStrategy() {
+        return strategy;
+    }
+
+    /** Get key matching elements, if merging by key. */
+    public String getKey() {
+        return key;
+    }
+
+    /** Describe rules, e.g. `tags=union servers=mergeByKey(name)`. */
+    @Override
+    public String toString() {
+        List<String> rules = new ArrayList<>();
+        describe("", rules);
+        return rules.isEmpty() ? "none" : String.join(" ", rules);
+    }
+
+    /** Helper: describe rules below {@code prefix}. */
+    private void describe(String prefix, List<String> rules) {
+        children.forEach((childKey, child) -> {
+            String path = prefix.isEmpty() ? childKey : prefix + "." + childKey;
+            if (child.strategy != null) {
+                rules.add(f("%s=%s%s", path, strategyName(child.strategy), child.key != null ? f("(%s)", child.key) : ""));
+            }
+            child.describe(path, rules);
+        });
+    }
+
+    /** Helper: strategy by name, e.g. `mergeByKey`, null if unknown. */
+    private static Mapper.ArrayStrategy parseStrategy(Object name) {
+        if (!(name instanceof String)) {
+            return null;
+        }
+        for (Mapper.ArrayStrategy myStrategy : Mapper.ArrayStrategy.values()) {
+            if (strategyName(myStrategy).equalsIgnoreCase((String) name)) {
+                return myStrategy;
+            }
+        }
+        return null;
+    }
+
+    /** Helper: name of strategy, e.g. `mergeByKey` for MERGE_BY_KEY. */
+    private static String strategyName(Mapper.ArrayStrategy myStrategy) {
+        StringBuilder name = new StringBuilder();
+        for (String part : myStrategy.name().toLowerCase(Locale.ROOT).split("_")) {
+            name.append(name.length() == 0 ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+        }
+        return name.toString();
+    }
+}
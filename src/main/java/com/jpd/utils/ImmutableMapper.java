@@ -0,0 +1,341 @@
+package com.jpd.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Immutable variant of the {@code Mapper}. Holds no state, path syntax
+ * and array strategy are passed per call, paths are parsed once into
+ * {@code MapPath}s. Safe to share across any number of threads (the
+ * maps passed in are not synchronised, that's up to the caller).
+ * <p>
+ * Semantics are those of the {@code Mapper}, however, {@code get},
+ * {@code set} and {@code update} walk iteratively and don't allocate
+ * per level.
+ */
+public final class ImmutableMapper {
+
+    /** Path syntax: separator (a regex, as per the {@code Mapper}) and joiner. */
+    public static final class Syntax {
+
+        /** Dot separated paths, e.g. `a.b.c`. */
+        public static final Syntax DOTS = new Syntax("[.]", ".");
+
+        /** Slash separated paths, e.g. `a/b/c`. */
+        public static final Syntax SLASHES = new Syntax("[/]", "/");
+
+        /** Separator regex. */
+        private final String separator;
+
+        /** Joiner. */
+        private final String joiner;
+
+        /** Constructor. */
+        public Syntax(String separator, String joiner) {
+            this.separator = separator;
+            this.joiner = joiner;
+        }
+    }
+
+    /** A parsed path. Keys are split (and blank keys dropped) as per the
+     * {@code Mapper}, once.
+     */
+    public static final class MapPath {
+
+        /** Keys from root. */
+        private final String[] keys;
+
+        /** Index of last key walked by {@code get}. */
+        private final int lastWalked;
+
+        /** Flat path, keys joined. */
+        private final String flat;
+
+        /** Syntax parsed with. */
+        private final Syntax syntax;
+
+        /** Constructor. */
+        private MapPath(String[] keys, String flat, Syntax syntax) {
+            this.keys = keys;
+            int last = 0;
+            for (int i = 1; i < keys.length; i++) {
+                if (!keys[i].isBlank()) {
+                    last = i;
+                }
+            }
+            this.lastWalked = last;
+            this.flat = flat;
+            this.syntax = syntax;
+        }
+
+        /** Parse (partial) keys, e.g. `parse(DOTS, "a.b", "c")`. */
+        public static MapPath parse(Syntax syntax, String... keys) {
+            List<String> validKeys = new ArrayList<>();
+            for (String key : keys) {
+                // Filter any null or blank values.
+                if (key == null || key.isBlank()) {
+                    continue;
+                }
+                validKeys.add(key);
+            }
+            String flat = String.join(syntax.joiner, validKeys);
+            return new MapPath(flat.split(syntax.separator), flat, syntax);
+        }
+
+        /** Parse list of (partial) keys. */
+        public static MapPath parse(Syntax syntax, List<String> keys) {
+            return parse(syntax, keys.toArray(new String[0]));
+        }
+
+        /** Get number of keys. */
+        public int size() {
+            return keys.length;
+        }
+
+        /** Get key at {@code index}. */
+        public String get(int index) {
+            return keys[index];
+        }
+
+        @Override
+        public String toString() {
+            return flat;
+        }
+    }
+
+    /** Helper class: an update in progress, one per nesting level. */
+    private static class UpdateFrame {
+
+        /** Entries of source left to apply. */
+        private final Iterator<Map.Entry<String, Object>> src;
+
+        /** Destination. */
+        private final Map<String, Object> dest;
+
+        /** Array rules at this level, null if none. */
+        private final ArrayRules rules;
+
+        /** Constructor. */
+        private UpdateFrame(Map<String, Object> src, Map<String, Object> dest, ArrayRules rules) {
+            this.src = src.entrySet().iterator();
+            this.dest = dest;
+            this.rules = rules;
+        }
+    }
+
+    /** Constructor. */
+    public ImmutableMapper() {
+    }
+
+    /** Get value at {@code path}, null if missing. As with the
+     * {@code Mapper}, the first non-map on the way is returned and
+     * blank keys (but the first) are skipped.
+     */
+    public Object get(Map<String, Object> map, MapPath path) {
+        if (map == null) {
+            return null;
+        }
+        if (map instanceof IndexedConfig && path.keys.length > 0) {
+            Object value = ((IndexedConfig) map).lookup(path.flat, path.syntax.separator);
+            if (value != null) {
+                return value;
+            }
+        }
+        Map<String, Object> current = map;
+        for (int i = 0; i <= path.lastWalked; i++) {
+            if (i > 0 && path.keys[i].isBlank()) {
+                continue;
+            }
+            Object value = current.get(path.keys[i]);
+            if (!(value instanceof Map) || i == path.lastWalked) {
+                return value;
+            }
+            current = (Map<String, Object>) value;
+        }
+        return null;
+    }
+
+    /** Get value at {@code path}, parsed as per {@code syntax}. */
+    public Object get(Map<String, Object> map, Syntax syntax, String path) {
+        return get(map, MapPath.parse(syntax, path));
+    }
+
+    /** Set value at {@code path}, replacing any non-maps on the way. */
+    public void set(Object value, Map<String, Object> map, MapPath path) {
+        Map<String, Object> current = map;
+        int last = path.keys.length - 1;
+        for (int i = 0; i < last; i++) {
+            Object next = current.get(path.keys[i]);
+            if (!(next instanceof Map)) {
+                next = new HashMap<String, Object>();
+                current.put(path.keys[i], next);
+            }
+            current = (Map<String, Object>) next;
+        }
+        current.put(path.keys[last], value);
+    }
+
+    /** Update {@code dest} with {@code src}, lists handled as per
+     * {@code strategy}.
+     */
+    public void update(Map<String, Object> src, Map<String, Object> dest, Mapper.ArrayStrategy strategy) {
+        update(src, dest, ArrayRules.of(strategy));
+    }
+
+    /** Update {@code dest} with {@code src}, lists handled as per
+     * {@code rules}. Linear in the size of {@code src} and the lists
+     * merged into.
+     */
+    public void update(Map<String, Object> src, Map<String, Object> dest, ArrayRules rules) {
+        if (src == null || dest == null) {
+            return;
+        }
+        Deque<UpdateFrame> frames = new ArrayDeque<>();
+        frames.push(new UpdateFrame(src, dest, rules));
+        while (!frames.isEmpty()) {
+            UpdateFrame frame = frames.peek();
+            if (!frame.src.hasNext()) {
+                frames.pop();
+                continue;
+            }
+            Map.Entry<String, Object> entry = frame.src.next();
+            String key = entry.getKey();
+            Object srcValue = entry.getValue();
+            if (!frame.dest.containsKey(key)) {
+                frame.dest.put(key, srcValue);
+                continue;
+            }
+            Object destValue = frame.dest.get(key);
+            ArrayRules myRules = frame.rules != null ? frame.rules.get(key) : null;
+            if (isPrimitive(srcValue)) {
+                frame.dest.put(key, srcValue);
+            } else if (srcValue instanceof Map) {
+                Map<String, Object> nestedDest = (Map<String, Object>) destValue;
+                if (nestedDest != null) {
+                    frames.push(new UpdateFrame((Map<String, Object>) srcValue, nestedDest, myRules));
+                }
+            } else if (srcValue instanceof List) {
+                ArrayRules rule = myRules != null && myRules.getStrategy() != null ? myRules : rules;
+                Mapper.ArrayStrategy strategy = rule.getStrategy();
+                if (strategy == Mapper.ArrayStrategy.REPLACE) {
+                    frame.dest.put(key, srcValue);
+                } else if (!(destValue instanceof List)) {
+                    // Same as the mapper: skip what's left on this level.
+                    frames.pop();
+                } else if (strategy == Mapper.ArrayStrategy.APPEND) {
+                    ((List<Object>) destValue).addAll((List<Object>) srcValue);
+                } else if (strategy == Mapper.ArrayStrategy.UNION) {
+                    union((List<Object>) srcValue, (List<Object>) destValue);
+                } else if (strategy == Mapper.ArrayStrategy.MERGE_BY_KEY) {
+                    mergeByKey((List<Object>) srcValue, (List<Object>) destValue, rule.getKey(), myRules, frames);
+                }
+            } else {
+                throw new RuntimeException("I didn't think this could happen while writing this. :)");
+            }
+        }
+    }
+
+    /** Overlay {@code src} on top of {@code base}, see {@code Mapper.overlay}. */
+    public Map<String, Object> overlay(Map<String, Object> src, Map<String, Object> base, Mapper.ArrayStrategy strategy) {
+        if (src == null || src.isEmpty()) {
+            return base;
+        }
+        if (base == null) {
+            // E.g. nested under a `~` key, same as overlaying nothing.
+            base = Collections.emptyMap();
+        }
+        Map<String, Object> overlay = new HashMap<>();
+        for (Map.Entry<String, Object> entry: src.entrySet()) {
+            String key = entry.getKey();
+            Object srcValue = entry.getValue();
+            if (base.containsKey(key)) {
+                Object baseValue = base.get(key);
+                if (isPrimitive(srcValue)) {
+                    overlay.put(key, srcValue);
+                } else if (srcValue instanceof Map) {
+                    overlay.put(key, overlay((Map<String, Object>) srcValue, (Map<String, Object>) baseValue, strategy));
+                } else if (srcValue instanceof List) {
+                    if (strategy == Mapper.ArrayStrategy.REPLACE) {
+                        overlay.put(key, srcValue);
+                    } else if (!(baseValue instanceof List)) {
+                        break;
+                    } else if (strategy == Mapper.ArrayStrategy.APPEND) {
+                        List<Object> appended = new ArrayList<>((List<Object>) baseValue);
+                        appended.addAll((List<Object>) srcValue);
+                        overlay.put(key, appended);
+                    } else if (strategy == Mapper.ArrayStrategy.UNION) {
+                        List<Object> appended = new ArrayList<>((List<Object>) baseValue);
+                        union((List<Object>) srcValue, appended);
+                        overlay.put(key, appended);
+                    } else {
+                        throw new RuntimeException("Merging by key requires a key, use array rules.");
+                    }
+                } else {
+                    throw new RuntimeException("I didn't think this could happen while writing this. :)");
+                }
+            } else {
+                overlay.put(key, srcValue);
+            }
+        }
+        return new OverlayMap(base, overlay);
+    }
+
+    /** Helper: append elements of {@code src} not yet in {@code dest}. */
+    private static void union(List<Object> src, List<Object> dest) {
+        Set<Object> elements = new HashSet<>(dest);
+        for (Object element : src) {
+            if (elements.add(element)) {
+                dest.add(element);
+            }
+        }
+    }
+
+    /** Helper: merge elements of {@code src} into elements of {@code dest}
+     * with the same value at {@code key} (the first, if several), append
+     * others. Merges are pushed as frames, in order, with the rules
+     * below the list.
+     */
+    private static void mergeByKey(
+        List<Object> src, List<Object> dest, String key, ArrayRules rules, Deque<UpdateFrame> frames) {
+        Map<Object, Map<String, Object>> elementsByKey = new HashMap<>();
+        for (Object element : dest) {
+            indexElement(element, key, elementsByKey);
+        }
+        List<UpdateFrame> merges = new ArrayList<>();
+        for (Object element : src) {
+            Object value = element instanceof Map ? ((Map<String, Object>) element).get(key) : null;
+            Map<String, Object> match = value != null ? elementsByKey.get(value) : null;
+            if (match != null) {
+                merges.add(new UpdateFrame((Map<String, Object>) element, match, rules));
+            } else {
+                dest.add(element);
+                indexElement(element, key, elementsByKey);
+            }
+        }
+        for (int i = merges.size() - 1; i >= 0; i--) {
+            frames.push(merges.get(i));
+        }
+    }
+
+    /** Helper: index map element by its value at {@code key}, if any. */
+    private static void indexElement(Object element, String key, Map<Object, Map<String, Object>> elementsByKey) {
+        if (element instanceof Map) {
+            Object value = ((Map<String, Object>) element).get(key);
+            if (value != null) {
+                elementsByKey.putIfAbsent(value, (Map<String, Object>) element);
+            }
+        }
+    }
+
+    /** Helper: is primitive? */
+    private static boolean isPrimitive(Object obj) {
+        return obj instanceof String || obj instanceof Number || obj instanceof Boolean;
+    }
+}
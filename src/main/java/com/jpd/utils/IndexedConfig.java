@@ -0,0 +1,126 @@
+package com.jpd.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Config map keeping a flat path index. Paths looked up through the
+ * mapper are indexed, in `.` or `/` form (as per the mapper's
+ * separator), so repeated lookups cost a single hash probe rather than
+ * splitting and walking the path. Hits allocate nothing.
+ * <p>
+ * Entries hold the maps on their path. They're checked against the
+ * live tree on lookup (one reference comparison per level), so any
+ * changes, be it via the mapper ({@code set}, {@code update}) or made
+ * directly (e.g. by the resolver), are always seen: replaced values
+ * are read through, detached entries are re-walked. Lookups are safe
+ * from concurrent readers (the config itself must not change then).
+ */
+public class IndexedConfig extends HashMap<String, Object> {
+
+    /** Entries by `.` separated path. */
+    private final Map<String, Entry> dotIndex = new ConcurrentHashMap<>();
+
+    /** Entries by `/` separated path. */
+    private final Map<String, Entry> slashIndex = new ConcurrentHashMap<>();
+
+    /** An indexed entry. */
+    private static class Entry {
+
+        /** Maps on the path, starting at root. */
+        private final Map<String, Object>[] containers;
+
+        /** Keys on the path, into the map at the same position. */
+        private final String[] keys;
+
+        /** Constructor. */
+        private Entry(Map<String, Object>[] containers, String[] keys) {
+            this.containers = containers;
+            this.keys = keys;
+        }
+
+        /** Get value if still attached via the same maps, o/w null. */
+        private Object getIfLive() {
+            int last = keys.length - 1;
+            for (int i = 0; i < last; i++) {
+                if (containers[i].get(keys[i]) != containers[i + 1]) {
+                    return null;
+                }
+            }
+            return containers[last].get(keys[last]);
+        }
+    }
+
+    /** Constructor. */
+    public IndexedConfig() {
+    }
+
+    /** Get value at flat {@code path} with entries separated by
+     * {@code separator} (the mapper's separator regex). Null if not
+     * found this way, the caller falls back to the mapper's walk (e.g.
+     * for blank keys or paths running through non-maps).
+     */
+    Object lookup(String path, String separator) {
+        char mySeparator;
+        Map<String, Entry> index;
+        if ("[.]".equals(separator)) {
+            mySeparator = '.';
+            index = dotIndex;
+        } else if ("[/]".equals(separator)) {
+            mySeparator = '/';
+            index = slashIndex;
+        } else {
+            return null;
+        }
+        Entry entry = index.get(path);
+        if (entry != null) {
+            Object value = entry.getIfLive();
+            if (value != null) {
+                return value;
+            }
+        }
+        entry = walk(path, mySeparator);
+        if (entry == null) {
+            index.remove(path);
+            return null;
+        }
+        index.put(path, entry);
+        return entry.containers[entry.keys.length - 1].get(entry.keys[entry.keys.length - 1]);
+    }
+
+    /** Get number of indexed paths. */
+    public int getIndexSize() {
+        return dotIndex.size() + slashIndex.size();
+    }
+
+    /** Helper: walk path, null if not found via maps only. */
+    private Entry walk(String path, char separator) {
+        int depth = 1;
+        for (int i = path.indexOf(separator); i >= 0; i = path.indexOf(separator, i + 1)) {
+            depth++;
+        }
+        Map<String, Object>[] containers = new Map[depth];
+        String[] keys = new String[depth];
+        Map<String, Object> container = this;
+        int start = 0;
+        for (int i = 0; i < depth; i++) {
+            int end = i < depth - 1 ? path.indexOf(separator, start) : path.length();
+            if (end == start) {
+                return null;
+            }
+            String key = path.substring(start, end);
+            containers[i] = container;
+            keys[i] = key;
+            Object value = container.get(key);
+            if (i == depth - 1) {
+                return value != null ? new Entry(containers, keys) : null;
+            }
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            container = (Map<String, Object>) value;
+            start = end + 1;
+        }
+        return null;
+    }
+}
@@ -6,11 +6,10 @@ import org.json.JSONObject;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.File;
-import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -20,8 +19,6 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static java.nio.file.Files.writeString;
-
 /** Some utils. */
 public class JVarlerUtils {
 
@@ -73,31 +70,49 @@ public class JVarlerUtils {
 
     /** Get depo root path. */
     public static String getDepoRootPath() {
-        String userDir = System.getProperty("user.dir");
+        return getDepoRootPath(null);
+    }
+
+    /** Get depo root path of working dir, the process working dir if null. */
+    public static String getDepoRootPath(String workingDir) {
+        String userDir = workingDir != null ? workingDir : System.getProperty("user.dir");
         Objects.requireNonNull(userDir);
         return userDir.replaceFirst("depo/.*", "depo");
     }
 
+    /** Inner key pattern, e.g. `${a}`. */
+    private static final Pattern INNER_KEY_PATTERN = Pattern.compile("\\$\\{([^}]+)}");
+
+    /** Relative path pattern, e.g. `${../`. */
+    private static final Pattern REL_PATH_PATTERN = Pattern.compile("\\$\\{(\\.\\./(\\.\\./)*)");
+
+    /** Override pattern, e.g. `a.b=c`. */
+    private static final Pattern OVERRIDE_PATTERN = Pattern.compile("^(\\d)?:?([a-zA-Z_\\.0-9]+)=(.*)$");
+
     /** Get inner key matches. */
     public static List<String> getInnerKeyMatches(String input) {
-        return getMatches("\\$\\{([^}]+)}", input);
+        return getMatches(INNER_KEY_PATTERN, input);
     }
 
     /** Get relative path matches. */
     public static List<String> getRelPathMatches(String input) {
-        return getMatches("\\$\\{(\\.\\./(\\.\\./)*)", input);
+        return getMatches(REL_PATH_PATTERN, input);
     }
 
     /** Get override matches. */
     public static List<String> getOverrideMatches(String input) {
-        return getMatches("^(\\d)?:?([a-zA-Z_\\.0-9]+)=(.*)$", input);
+        return getMatches(OVERRIDE_PATTERN, input);
     }
 
     /** Generic match provider. */
     public static List<String> getMatches(String pattern, String input) {
+        return getMatches(Pattern.compile(pattern), input);
+    }
+
+    /** Generic match provider, precompiled pattern. */
+    public static List<String> getMatches(Pattern pattern, String input) {
         List<String> groups = new ArrayList<>();
-        Pattern compiled = Pattern.compile(pattern);
-        Matcher matcher = compiled.matcher(input);
+        Matcher matcher = pattern.matcher(input);
         while (matcher.find()) {
             for (int i = 1; i <= matcher.groupCount(); i++) {
                 groups.add(matcher.group(i));
@@ -178,15 +193,30 @@ public class JVarlerUtils {
         }
     }
 
-    /** Write exports file. */
-    public static void writeExports(String path, Map<String, Object> config) {
-        try {
-            String prettyString = toPrettyString(config);
-            Objects.requireNonNull(prettyString);
-            writeString(Path.of(path), prettyString);
-            log.info(f("Written config to: %s", path));
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+    /** Duration pattern, e.g. `10m`. */
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+)\\s*(ms|s|m|h|d)?");
+
+    /** Parse a duration, e.g. `500ms`, `30s`, `10m`, `1h`, `2d`.
+     * Plain numbers are seconds.
+     */
+    public static Duration parseDuration(String value) {
+        Matcher matcher = DURATION_PATTERN.matcher(value.strip());
+        if (!matcher.matches()) {
+            throw new RuntimeException(f("Invalid duration: %s", value));
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2) == null ? "s" : matcher.group(2);
+        switch (unit) {
+            case "ms":
+                return Duration.ofMillis(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            case "h":
+                return Duration.ofHours(amount);
+            case "d":
+                return Duration.ofDays(amount);
+            default:
+                return Duration.ofSeconds(amount);
         }
     }
 
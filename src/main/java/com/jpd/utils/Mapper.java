@@ -1,13 +1,19 @@
 package com.jpd.utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
 
 /** The mapper is used to process nested
  * JSON data in a {@code JsonObject}.
+ * <p>
+ * Flat paths into an {@code IndexedConfig} are looked up via its
+ * path index.
  */
 public class Mapper {
 
@@ -23,7 +29,15 @@ public class Mapper {
 
     public enum ArrayStrategy {
         REPLACE,
-        APPEND
+        APPEND,
+
+        /** Append elements not yet in the list. */
+        UNION,
+
+        /** Deep merge maps having the same value at a key, append
+         * others. Requires the key, see {@code ArrayRules}.
+         */
+        MERGE_BY_KEY
     }
 
     /** Array handling strategy. */
@@ -40,6 +54,14 @@ public class Mapper {
         if (keys.length == 0) {
             return keys;
         }
+        return join(keys).split(separator);
+    }
+
+    /** Join keys into a flat path, e.g. to look up repeatedly. */
+    public String join(String... keys) {
+        if (keys.length == 1 && keys[0] != null && !keys[0].isBlank()) {
+            return keys[0];
+        }
         List<String> validKeys = new ArrayList<>();
         for (String key : keys) {
             // Filter any null or blank values.
@@ -48,7 +70,7 @@ public class Mapper {
             }
             validKeys.add(key);
         }
-        return String.join(joiner, validKeys).split(separator);
+        return String.join(joiner, validKeys);
     }
 
     /** JSON based nested getter. */
@@ -61,6 +83,12 @@ public class Mapper {
         if (json == null) {
             return null;
         }
+        if (!rm && keys.length == 1 && keys[0] != null && json instanceof IndexedConfig) {
+            Object value = ((IndexedConfig) json).lookup(keys[0], separator);
+            if (value != null) {
+                return value;
+            }
+        }
         keys = preprocessKeys(keys);
         if (rm && keys.length == 1) {
             return json.remove(keys[0]);
@@ -124,6 +152,13 @@ public class Mapper {
                         for (Object element : (List<Object>) srcValue) {
                             ((List<Object>) destValue).add(element);
                         }
+                    } else if (arrayStrategy.equals(ArrayStrategy.UNION)) {
+                        Set<Object> elements = new HashSet<>((List<Object>) destValue);
+                        for (Object element : (List<Object>) srcValue) {
+                            if (elements.add(element)) {
+                                ((List<Object>) destValue).add(element);
+                            }
+                        }
                     }
                 } else {
                     throw new RuntimeException("I didn't think this could happen while writing this. :)");
@@ -134,6 +169,59 @@ public class Mapper {
         }
     }
 
+    /** Overlay {@code src} on top of {@code base}. Same semantics as
+     * {@code update(src, base)}, however, {@code base} is left untouched.
+     * Only paths touched by {@code src} are allocated, everything else
+     * is read through from {@code base}. A null {@code base} is taken
+     * as empty.
+     */
+    public Map<String, Object> overlay(Map<String, Object> src, Map<String, Object> base) {
+        if (src == null || src.isEmpty()) {
+            return base;
+        }
+        if (base == null) {
+            // E.g. nested under a `~` key, same as overlaying nothing.
+            base = Collections.emptyMap();
+        }
+        Map<String, Object> overlay = new HashMap<>();
+        for (Map.Entry<String, Object> entry: src.entrySet()) {
+            String key = entry.getKey();
+            Object srcValue = entry.getValue();
+            if (base.containsKey(key)) {
+                Object baseValue = base.get(key);
+                if (isPrimitive(srcValue)) {
+                    overlay.put(key, srcValue);
+                } else if (srcValue instanceof Map) {
+                    overlay.put(key, overlay((Map<String, Object>) srcValue, (Map<String, Object>) baseValue));
+                } else if (srcValue instanceof List) {
+                    if (arrayStrategy.equals(ArrayStrategy.REPLACE)) {
+                        overlay.put(key, srcValue);
+                    } else if (!(baseValue instanceof List)) {
+                        break;
+                    } else if (arrayStrategy.equals(ArrayStrategy.APPEND)) {
+                        List<Object> appended = new ArrayList<>((List<Object>) baseValue);
+                        appended.addAll((List<Object>) srcValue);
+                        overlay.put(key, appended);
+                    } else if (arrayStrategy.equals(ArrayStrategy.UNION)) {
+                        List<Object> appended = new ArrayList<>((List<Object>) baseValue);
+                        Set<Object> elements = new HashSet<>(appended);
+                        for (Object element : (List<Object>) srcValue) {
+                            if (elements.add(element)) {
+                                appended.add(element);
+                            }
+                        }
+                        overlay.put(key, appended);
+                    }
+                } else {
+                    throw new RuntimeException("I didn't think this could happen while writing this. :)");
+                }
+            } else {
+                overlay.put(key, srcValue);
+            }
+        }
+        return new OverlayMap(base, overlay);
+    }
+
     /** Replacement handler. Replaces string values throughout
      * provided JSON. That is, for replacements `x: y`, any string
      * `x` found in `json` will be replaced with string `y` on
@@ -194,8 +282,13 @@ public class Mapper {
         this.joiner = joiner;
     }
 
-    /** Set array handling strategy. */
+    /** Set array handling strategy. Merging by key needs a key per
+     * path, see the {@code ImmutableMapper}.
+     */
     public void setArrayStrategy(ArrayStrategy arrayStrategy) {
+        if (arrayStrategy == ArrayStrategy.MERGE_BY_KEY) {
+            throw new RuntimeException("Merging by key requires a key, use array rules.");
+        }
         this.arrayStrategy = arrayStrategy;
     }
 }
@@ -0,0 +1,81 @@
+package com.jpd.utils;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Read-only layered map view. Lookups hit the (small) overlay
+ * first and fall through to the (shared) base. Neither layer is
+ * copied. See {@code Mapper.overlay} for building overlays with
+ * the usual update semantics.
+ */
+public class OverlayMap extends AbstractMap<String, Object> {
+
+    /** Shared base layer. Never written to. */
+    private final Map<String, Object> base;
+
+    /** Overlay layer. Takes precedence over base. */
+    private final Map<String, Object> overlay;
+
+    /** Merged entry set, built lazily on first iteration. */
+    private Set<Entry<String, Object>> entrySet;
+
+    /** Constructor. */
+    public OverlayMap(Map<String, Object> base, Map<String, Object> overlay) {
+        this.base = base;
+        this.overlay = overlay;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (overlay.containsKey(key)) {
+            return overlay.get(key);
+        }
+        return base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return overlay.containsKey(key) || base.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return entrySet().size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            Map<String, Object> merged = new HashMap<>(base);
+            merged.putAll(overlay);
+            entrySet = Collections.unmodifiableMap(merged).entrySet();
+        }
+        return entrySet;
+    }
+
+    /** Deep, read-only copy of {@code map}. Used to share a single
+     * immutable base across threads.
+     */
+    public static Map<String, Object> freeze(Map<String, Object> map) {
+        return (Map<String, Object>) freezeValue(map);
+    }
+
+    /** Helper: freeze any value. Primitives are immutable as is. */
+    private static Object freezeValue(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> frozen = new HashMap<>();
+            ((Map<String, Object>) value).forEach((k, v) -> frozen.put(k, freezeValue(v)));
+            return Collections.unmodifiableMap(frozen);
+        } else if (value instanceof List) {
+            List<Object> frozen = new ArrayList<>();
+            ((List<Object>) value).forEach(v -> frozen.add(freezeValue(v)));
+            return Collections.unmodifiableList(frozen);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,137 @@
+package com.jpd.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/** A string pre-scanned into literal segments and placeholder
+ * references (e.g. `${/a.b:-default}`). Scanning is done once
+ * by hand, no regex involved, and reference key paths are parsed
+ * up front. Instances are immutable and meant to be cached.
+ * <p>
+ * Only innermost references are picked up, that is, references
+ * not themselves containing `$`, `{`, `)` or any suffix character.
+ * This is the same as the regex previously used by the resolver.
+ */
+public class Placeholders {
+
+    /** A segment, either literal text or a reference. */
+    public static class Segment {
+
+        /** Literal text, or the full (wrapped) reference text. */
+        private final String text;
+
+        /** Reference key path (unwrapped), null if literal. */
+        private final String keyPath;
+
+        /** Parsed key path, null if literal. */
+        private final Resolver.KeyPath parsed;
+
+        /** Constructor. */
+        private Segment(String text, String keyPath, Resolver.KeyPath parsed) {
+            this.text = text;
+            this.keyPath = keyPath;
+            this.parsed = parsed;
+        }
+
+        /** Is this a literal segment? */
+        public boolean isLiteral() {
+            return keyPath == null;
+        }
+
+        /** Get text, for references this is the wrapped reference. */
+        public String getText() {
+            return text;
+        }
+
+        /** Get (unwrapped) key path. */
+        public String getKeyPath() {
+            return keyPath;
+        }
+
+        /** Get parsed key path. */
+        Resolver.KeyPath getParsed() {
+            return parsed;
+        }
+    }
+
+    /** Segments in order. */
+    private final List<Segment> segments;
+
+    /** Key paths of any references, in order. */
+    private final List<String> keyPaths;
+
+    /** Constructor. */
+    private Placeholders(List<Segment> segments, List<String> keyPaths) {
+        this.segments = segments;
+        this.keyPaths = keyPaths;
+    }
+
+    /** Scan {@code value} for references wrapped in {@code prefix} and {@code suffix}. */
+    public static Placeholders scan(String value, String prefix, String suffix) {
+        return scan(value, prefix, suffix, keyPath -> null);
+    }
+
+    /** Scan {@code value}, parse reference key paths using {@code parser}. */
+    static Placeholders scan(
+        String value, String prefix, String suffix, Function<String, Resolver.KeyPath> parser) {
+        List<Segment> segments = new ArrayList<>();
+        List<String> keyPaths = new ArrayList<>();
+        int length = value.length();
+        int literalStart = 0;
+        int index = value.indexOf(prefix);
+        while (index >= 0) {
+            int start = index + prefix.length();
+            int end = start;
+            while (end < length && !isExcluded(value.charAt(end), suffix)) {
+                end++;
+            }
+            if (end > start && value.startsWith(suffix, end)) {
+                if (index > literalStart) {
+                    segments.add(new Segment(value.substring(literalStart, index), null, null));
+                }
+                String keyPath = value.substring(start, end);
+                literalStart = end + suffix.length();
+                segments.add(new Segment(value.substring(index, literalStart), keyPath, parser.apply(keyPath)));
+                keyPaths.add(keyPath);
+                index = value.indexOf(prefix, literalStart);
+            } else {
+                index = value.indexOf(prefix, index + 1);
+            }
+        }
+        if (keyPaths.isEmpty()) {
+            return new Placeholders(Collections.emptyList(), Collections.emptyList());
+        }
+        if (literalStart < length) {
+            segments.add(new Segment(value.substring(literalStart), null, null));
+        }
+        return new Placeholders(
+            Collections.unmodifiableList(segments), Collections.unmodifiableList(keyPaths));
+    }
+
+    /** Helper: characters that can't be part of a reference. */
+    private static boolean isExcluded(char c, String suffix) {
+        return c == '$' || c == '{' || c == ')' || suffix.indexOf(c) >= 0;
+    }
+
+    /** Any references? */
+    public boolean hasReferences() {
+        return !keyPaths.isEmpty();
+    }
+
+    /** Is the whole string a single reference? */
+    public boolean isSingleReference() {
+        return segments.size() == 1 && !segments.get(0).isLiteral();
+    }
+
+    /** Get segments in order. Empty if there are no references. */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /** Get key paths of all references in order. */
+    public List<String> getKeyPaths() {
+        return keyPaths;
+    }
+}
@@ -2,11 +2,12 @@ package com.jpd.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import static com.jpd.utils.JVarlerUtils.f;
 
@@ -22,11 +23,13 @@ public class Resolver {
     /** Resolver escape suffix. */
     private String suffix = "}";
 
-    /** Regex escape prefix. */
-    private String regexPrefix = Pattern.quote(prefix);
+    /** Scanned strings by value. Strings are scanned once per
+     * resolver, the same values recur across layers and passes.
+     */
+    private final Map<String, Placeholders> scanned = new HashMap<>();
 
-    /** Regex escape suffix. */
-    private String regexSuffix = Pattern.quote(suffix);
+    /** Max number of scanned strings kept. Cleared once exceeded. */
+    private static final int MAX_SCANNED = 1 << 16;
 
     /** Fail on any unresolvable values. */
     private Boolean failOnUnresolvable = false;
@@ -59,6 +62,13 @@ public class Resolver {
      */
     private Boolean keyResolution = false;
 
+    /** Resolve using a reference graph. Every value is resolved
+     * exactly once, in dependency order, and reference cycles are
+     * reported rather than cut off after a fixed number of passes.
+     * Key resolution is not supported in this mode.
+     */
+    private Boolean graphResolution = false;
+
     /** Mapper instance. */
     private Mapper mapper = new Mapper();
 
@@ -82,30 +92,32 @@ public class Resolver {
     /** Set {@code separator}. */
     public void setSeparator(String separator) {
         mapper.setSeparator(separator);
+        scanned.clear();
     }
 
     /** Set {@code joiner}. */
     public void setJoiner(String joiner) {
         mapper.setJoiner(joiner);
+        scanned.clear();
     }
 
     /** Set escape wrapper. */
     public void setWrapper(String prefix, String suffix) {
         this.prefix = prefix;
         this.suffix = suffix;
-        regexPrefix = Pattern.quote(prefix);
-        regexSuffix = Pattern.quote(suffix);
-    }
-
-    /** Wrap key path using escape prefix/suffix. */
-    private String wrapKeyPath(String keyPath) {
-        return prefix + keyPath + suffix;
+        scanned.clear();
     }
 
     /** Overridable preprocessor invoked prior to any resolution being attempted. */
     protected void preProcessUnresolved(Object unresolved) {
     }
 
+    /** Overridable preprocessor for a single entry {@code container[key]},
+     * where {@code parentPath} is the path of {@code container} from root.
+     */
+    protected void preProcessUnresolved(Map<String, Object> container, String key, String parentPath) {
+    }
+
     public static class MapLayerInfo extends LayerInfo<Map<String, Object>> {
         public MapLayerInfo(int index, boolean isLast, Map<String, Object> layer) {
             super(index, isLast, layer);
@@ -142,12 +154,73 @@ public class Resolver {
         int last = mapLayers.size() - 1;
         for (int i = 0; i <= last; i++) {
             MapLayerInfo layerInfo = new MapLayerInfo(i, i == last, mapLayers.get(i));
-            resolveValues(unresolved, layerInfo);
+            if (graphResolution && !keyResolution) {
+                new ReferenceGraph(unresolved, layerInfo).resolve();
+            } else {
+                resolveValues(unresolved, layerInfo);
+            }
         }
         // Now resolved.
         return unresolved;
     }
 
+    /** Resolve only the entries at {@code paths} within {@code root}.
+     * Paths are lists of map keys from root. Missing paths are skipped.
+     */
+    public void resolvePaths(Map<String, Object> root, Collection<List<String>> paths) {
+        for (List<String> path : paths) {
+            Map<String, Object> container = getContainer(root, path);
+            if (container != null) {
+                String parentPath = toPath(path.subList(0, path.size() - 1));
+                preProcessUnresolved(container, path.get(path.size() - 1), parentPath);
+            }
+        }
+        int last = mapLayers.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            MapLayerInfo layerInfo = new MapLayerInfo(i, i == last, mapLayers.get(i));
+            ReferenceGraph graph = graphResolution ? new ReferenceGraph(root, layerInfo) : null;
+            for (List<String> path : paths) {
+                Map<String, Object> container = getContainer(root, path);
+                if (container == null) {
+                    continue;
+                }
+                String key = path.get(path.size() - 1);
+                if (graph != null) {
+                    graph.resolveEntry(container, key, toPath(path));
+                } else {
+                    container.put(key, resolveValues(container.get(key), layerInfo));
+                }
+            }
+        }
+    }
+
+    /** Helper: get map holding the entry at {@code path}, null if missing. */
+    private static Map<String, Object> getContainer(Map<String, Object> root, List<String> path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        Object container = root;
+        for (String key : path.subList(0, path.size() - 1)) {
+            if (!(container instanceof Map)) {
+                return null;
+            }
+            container = ((Map<String, Object>) container).get(key);
+        }
+        if (!(container instanceof Map) || !((Map<String, Object>) container).containsKey(path.get(path.size() - 1))) {
+            return null;
+        }
+        return (Map<String, Object>) container;
+    }
+
+    /** Helper: keys to path from root. */
+    private static String toPath(List<String> keys) {
+        StringBuilder path = new StringBuilder();
+        for (String key : keys) {
+            path.append("/").append(key);
+        }
+        return path.toString();
+    }
+
     /** Resolve JsonPrimitives. Used for condition resolution. */
     public Object resolvePrimitive(Object unresolved) {
         Object element = unresolved;
@@ -206,47 +279,242 @@ public class Resolver {
         return unresolved;
     }
 
-    /** Resolve {@code unresolved} using {@code layerInfo}. */
+    /** Resolve {@code unresolved} using {@code layerInfo}. Interpolates
+     * all references in a single pass over the scanned segments.
+     */
     public Object resolveValues(String value, MapLayerInfo layerInfo) {
         value = resolveKeyPath(value);
-        Object element = value;
-        String stringValue = value;
-        List<String> keyPaths = extractKeyPaths(stringValue);
-        for (String keyPath : keyPaths) {
+        Placeholders placeholders = scan(value);
+        if (!placeholders.hasReferences()) {
+            return value;
+        }
+        if (placeholders.isSingleReference()) {
+            // Keep inner type (numbers, booleans, collections).
+            Object newValue = resolveReference(placeholders, placeholders.getSegments().get(0), layerInfo);
+            return newValue == null ? value : newValue;
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        for (Placeholders.Segment segment : placeholders.getSegments()) {
+            Object newValue = segment.isLiteral() ? null : resolveReference(placeholders, segment, layerInfo);
+            builder.append(newValue == null ? segment.getText() : newValue.toString());
+        }
+        return builder.toString();
+    }
+
+    /** Resolve a single reference. Null if unresolvable. */
+    private Object resolveReference(Placeholders placeholders, Placeholders.Segment segment, MapLayerInfo layerInfo) {
+        Object newValue = getNewValue(layerInfo, segment.getParsed());
+        if (newValue == null) {
+            // Only fail on unresolvable if configured and last layer.
+            if (failOnUnresolvable && layerInfo.isLast()) {
+                throw new IllegalArgumentException(f("unresolvable `%s`.", placeholders.getKeyPaths().toString()));
+            }
+            return null;
+        }
+        if (!(isPrimitive(newValue))) {
+            // Resolved to non-string, need to nest.
+            newValue = resolveValues(newValue, layerInfo);
+        }
+        if (newValue instanceof String && nestedResolution && nestLevel < MAX_NEST_LEVEL) {
+            // If configured, nest into resolved values.
+            nestLevel++;
             try {
-                if (keyPath == null) {
-                    continue;
+                newValue = resolveValues(newValue, layerInfo);
+            } finally {
+                nestLevel--;
+            }
+        }
+        return newValue;
+    }
+
+    /** Reference graph over the values of a single resolution pass.
+     * Values are resolved depth first, on demand: before a value is
+     * resolved, every value it references is. This visits nodes in
+     * topological order of the reference graph, and each value is
+     * resolved exactly once. Nested references (`${a.${b}}`) are
+     * handled by resolving the inner reference first, which in turn
+     * determines the outer edge.
+     * <p>
+     * Edges into {@code unresolved} only exist if the layer is the
+     * unresolved object itself (self-referential resolution). Other
+     * layers are treated as already resolved.
+     */
+    private class ReferenceGraph {
+
+        /** Root of values to resolve. */
+        private final Object root;
+
+        /** Layer to look values up in. */
+        private final MapLayerInfo layerInfo;
+
+        /** Does the layer refer back into our values? */
+        private final boolean selfReferential;
+
+        /** Paths fully resolved. */
+        private final Set<String> resolved = new HashSet<>();
+
+        /** Paths currently being resolved, in order. Used for cycle detection. */
+        private final List<String> inProgress = new ArrayList<>();
+
+        /** Constructor. */
+        private ReferenceGraph(Object root, MapLayerInfo layerInfo) {
+            this.root = root;
+            this.layerInfo = layerInfo;
+            this.selfReferential = root == layerInfo.getLayer();
+        }
+
+        /** Resolve all values. */
+        private void resolve() {
+            resolveTree(root, "");
+        }
+
+        /** Resolve value held in {@code container[key]} at {@code path}. */
+        private void resolveEntry(Map<String, Object> container, String key, String path) {
+            Object value = container.get(key);
+            if (value instanceof String) {
+                resolveLeaf(container, key, path);
+            } else {
+                resolveTree(value, path);
+            }
+        }
+
+        /** Resolve any values in (sub)tree {@code node} at {@code path}. */
+        private void resolveTree(Object node, String path) {
+            if (node instanceof Map) {
+                Map<String, Object> map = (Map<String, Object>) node;
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    String childPath = path + "/" + entry.getKey();
+                    if (entry.getValue() instanceof String) {
+                        resolveLeaf(map, entry.getKey(), childPath);
+                    } else {
+                        resolveTree(entry.getValue(), childPath);
+                    }
                 }
-                Object newValue = getNewValue(layerInfo, keyPath);
-                if (newValue == null) {
-                    // Only fail on unresolvable if configured and last layer.
-                    if (failOnUnresolvable && layerInfo.isLast()) {
-                        throw new IllegalArgumentException(f("unresolvable `%s`.", keyPaths.toString()));
+            } else if (node instanceof List) {
+                List<Object> list = (List<Object>) node;
+                for (int i = 0; i < list.size(); i++) {
+                    String childPath = path + "/[" + i + "]";
+                    if (list.get(i) instanceof String) {
+                        resolveLeaf(list, i, childPath);
+                    } else {
+                        resolveTree(list.get(i), childPath);
                     }
-                    continue;
                 }
-                String wrappedKeyPath = wrapKeyPath(keyPath);
-                if (!(isPrimitive(newValue))) {
-                    // Resolved to non-string, need to nest.
-                    newValue = resolveValues(newValue, layerInfo);
+            }
+        }
+
+        /** Resolve a single string value held in {@code container[key]}. */
+        private void resolveLeaf(Object container, Object key, String path) {
+            if (resolved.contains(path)) {
+                return;
+            }
+            int index = inProgress.indexOf(path);
+            if (index >= 0) {
+                List<String> chain = new ArrayList<>(inProgress.subList(index, inProgress.size()));
+                chain.add(path);
+                throw new IllegalArgumentException(f("Reference cycle: %s", String.join(" -> ", chain)));
+            }
+            inProgress.add(path);
+            if (container instanceof Map) {
+                Map<String, Object> map = (Map<String, Object>) container;
+                map.put((String) key, resolveString((String) map.get(key)));
+            } else {
+                List<Object> list = (List<Object>) container;
+                list.set((Integer) key, resolveString((String) list.get((Integer) key)));
+            }
+            inProgress.remove(inProgress.size() - 1);
+            resolved.add(path);
+        }
+
+        /** Resolve references in a string. Innermost references first,
+         * until no more references can be resolved. Bounded, values of
+         * other layers may refer to themselves (e.g. `x: a${/x}`), which
+         * cycle detection doesn't see.
+         */
+        private Object resolveString(String value) {
+            String stringValue = value;
+            List<String> chain = new ArrayList<>();
+            for (int i = 0; i < MAX_NESTED_VAR_RESOLUTION; i++) {
+                Placeholders placeholders = scan(stringValue);
+                if (!placeholders.hasReferences()) {
+                    return stringValue;
+                }
+                String previous = stringValue;
+                if (placeholders.isSingleReference()) {
+                    Object newValue = lookup(placeholders, placeholders.getSegments().get(0), chain);
+                    if (newValue == null) {
+                        return stringValue;
+                    }
+                    if (!(newValue instanceof String)) {
+                        // Keep inner type (numbers, booleans, collections).
+                        return newValue;
+                    }
+                    stringValue = (String) newValue;
+                } else {
+                    StringBuilder builder = new StringBuilder(stringValue.length());
+                    for (Placeholders.Segment segment : placeholders.getSegments()) {
+                        Object newValue = segment.isLiteral() ? null : lookup(placeholders, segment, chain);
+                        builder.append(newValue == null ? segment.getText() : newValue.toString());
+                    }
+                    stringValue = builder.toString();
                 }
-                if (newValue instanceof String && nestedResolution && nestLevel++ < MAX_NEST_LEVEL) {
-                    // If configured, nest into resolved values.
-                    newValue = resolveValues(newValue, layerInfo);
-                    nestLevel--;
+                if (stringValue.equals(previous)) {
+                    return stringValue;
                 }
-                if (stringValue.equals(wrappedKeyPath)) {
-                    element = newValue;
-                    continue;
+            }
+            throw new IllegalArgumentException(f("Reference chain exceeds %d levels (cyclic?): %s",
+                MAX_NESTED_VAR_RESOLUTION, String.join(" -> ", chain)));
+        }
+
+        /** Look up a reference, resolving its target first. Paths
+         * looked up are added to {@code chain}.
+         */
+        private Object lookup(Placeholders placeholders, Placeholders.Segment segment, List<String> chain) {
+            KeyPath kp = segment.getParsed();
+            if (selfReferential) {
+                ensureResolved(mapper.preprocessKeys(kp.parts));
+            }
+            Object newValue = getNewValue(layerInfo, kp);
+            if (newValue == null && failOnUnresolvable && layerInfo.isLast()) {
+                throw new IllegalArgumentException(f("unresolvable `%s`.", placeholders.getKeyPaths().toString()));
+            }
+            if (newValue != null) {
+                chain.add(toPath(Arrays.asList(kp.parts)));
+            }
+            return newValue;
+        }
+
+        /** Ensure the value at {@code parts} (and any string on the
+         * way there) is resolved. Walks maps only, same as the mapper.
+         */
+        private void ensureResolved(String[] parts) {
+            Object container = null;
+            String key = null;
+            Object node = root;
+            String path = "";
+            for (String part : parts) {
+                if (node instanceof String && container != null) {
+                    // A prefix may itself resolve to a collection.
+                    resolveLeaf(container, key, path);
+                    node = ((Map<String, Object>) container).get(key);
                 }
-                element = stringValue.replace(wrappedKeyPath, newValue.toString());
-            } finally {
-                if (isPrimitive(element)) {
-                    stringValue = toString(element);
+                if (!(node instanceof Map)) {
+                    return;
                 }
+                container = node;
+                key = part;
+                path = path + "/" + part;
+                node = ((Map<String, Object>) container).get(part);
+                if (node == null) {
+                    return;
+                }
+            }
+            if (node instanceof String && container != null) {
+                resolveLeaf(container, key, path);
+            } else {
+                resolveTree(node, path);
             }
         }
-        return element;
     }
 
     /** Helper: convert a primitive to a string, respecting its inner type. */
@@ -274,8 +542,7 @@ public class Resolver {
                 array.set(i, nullUnresolved(array.get(i)));
             }
         } else if (in instanceof String) {
-            List<String> keyPaths = extractKeyPaths((String) in);
-            if (keyPaths.size() > 0) {
+            if (scan((String) in).hasReferences()) {
                 return null;
             }
         }
@@ -284,8 +551,13 @@ public class Resolver {
 
     /** Get new value. Allows overrides. */
     protected Object getNewValue(MapLayerInfo layerInfo, String keyPath) {
-        KeyPath kp = asKeyPath(keyPath);
-        Object newValue = mapper.get(layerInfo.getLayer(), kp.parts);
+        return getNewValue(layerInfo, asKeyPath(keyPath));
+    }
+
+    /** Get new value from a parsed key path. */
+    protected Object getNewValue(MapLayerInfo layerInfo, KeyPath kp) {
+        // Flat path, a single probe on indexed layers.
+        Object newValue = mapper.get(layerInfo.getLayer(), kp.path);
         if (newValue == null && kp.defaultValue != null) {
             newValue = kp.defaultValue;
         }
@@ -317,20 +589,19 @@ public class Resolver {
         return value;
     }
 
-    /** Extract the key path wrapped using the
-     * escape prefix and suffix.
+    /** Scan a string for references wrapped using the
+     * escape prefix and suffix. Cached by value.
      */
-    private List<String> extractKeyPaths(String value) {
-        String regex = String.format("%s([^${)%s]+)%s", regexPrefix, suffix, regexSuffix);
-        List<String> groups = new ArrayList<>();
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(value);
-        while (matcher.find()) {
-            for (int i = 0; i < matcher.groupCount(); i++) {
-                groups.add(matcher.group(i + 1));
+    private Placeholders scan(String value) {
+        Placeholders placeholders = scanned.get(value);
+        if (placeholders == null) {
+            if (scanned.size() >= MAX_SCANNED) {
+                scanned.clear();
             }
+            placeholders = Placeholders.scan(value, prefix, suffix, this::asKeyPath);
+            scanned.put(value, placeholders);
         }
-        return groups;
+        return placeholders;
     }
 
     /** Set to fail on any unresolvable values. */
@@ -345,6 +616,12 @@ public class Resolver {
         return this;
     }
 
+    /** Set to resolve using a reference graph. */
+    public Resolver setGraphResolution(Boolean graphResolution) {
+        this.graphResolution = graphResolution;
+        return this;
+    }
+
     /** Set to resolve keys. */
     public Resolver setKeyResolution(Boolean keyResolution) {
         this.keyResolution = keyResolution;
@@ -359,9 +636,13 @@ public class Resolver {
         String[] parts;
         String defaultValue;
 
-        KeyPath(String[] parts, String defaultValue) {
+        /** Parts joined into a flat path, as looked up by the mapper. */
+        String path;
+
+        KeyPath(String[] parts, String defaultValue, String path) {
             this.defaultValue = defaultValue;
             this.parts = parts;
+            this.path = path;
         }
     }
 
@@ -377,7 +658,7 @@ public class Resolver {
             defaultValue = String.join("", Arrays.copyOfRange(finalKeyParts, 1, finalKeyParts.length));
             parts[parts.length - 1] = finalKeyParts[0];
         }
-        return new KeyPath(parts, defaultValue);
+        return new KeyPath(parts, defaultValue, mapper.join(parts));
     }
 
     /** Clear all layers. */
@@ -4,7 +4,18 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.List;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -12,8 +23,13 @@ import static com.jpd.utils.JVarlerUtils.f;
 
 /** Simple bash client. Specify a command, run it.
  * No imports, no variables.
+ * <p>
+ * In session mode, commands are sent to long running bash processes
+ * (one per concurrent caller, reused) rather than starting a new bash
+ * per command. Each command still runs in its own subshell, so `cd`,
+ * variables or `exit` don't leak into the next command.
  */
-public class SimpleBashClient {
+public class SimpleBashClient implements AutoCloseable {
 
     /** A logger. */
     private final Logger log = LoggingUtils.getLogger(getClass());
@@ -21,28 +37,113 @@ public class SimpleBashClient {
     /** My working dir. */
     private final String workingDir;
 
+    /** Reuse bash sessions across commands. */
+    private final boolean session;
+
+    /** Idle sessions, ready for reuse. */
+    private final Deque<Session> idle = new ConcurrentLinkedDeque<>();
+
     /** Constructor. */
     public SimpleBashClient(String workingDir) {
+        this(workingDir, false);
+    }
+
+    /** Constructor, optionally in session mode. */
+    public SimpleBashClient(String workingDir, boolean session) {
         this.workingDir = workingDir;
+        this.session = session;
+    }
+
+    /** Get working dir. */
+    public String getWorkingDir() {
+        return workingDir;
     }
 
-    /** Run a command. */
+    /** Run a command. Formatted with {@code objs} if any given, o/w
+     * run verbatim (so may contain `%`, e.g. `date +%s`).
+     */
     public String run(String command, Object... objs) {
-        command = String.format(command, objs);
+        return runWithTimeout(null, command, objs);
+    }
+
+    /** Run a command, fail if not done within {@code timeout} (if set).
+     * Formatted with {@code objs} if any given, o/w run verbatim.
+     */
+    public String runWithTimeout(Duration timeout, String command, Object... objs) {
+        if (objs.length > 0) {
+            command = String.format(command, objs);
+        }
         log.info(f("Running shell: %s", command));
+        if (!session) {
+            return runProcess(command, timeout);
+        }
+        Session mySession = idle.poll();
+        if (mySession == null) {
+            mySession = new Session();
+        }
+        boolean reusable = false;
+        try {
+            String output = mySession.run(command, timeout);
+            reusable = true;
+            return output;
+        } finally {
+            if (reusable) {
+                idle.push(mySession);
+            } else {
+                mySession.close();
+            }
+        }
+    }
+
+    /** Close any sessions. */
+    @Override
+    public void close() {
+        Session mySession;
+        while ((mySession = idle.poll()) != null) {
+            mySession.close();
+        }
+    }
+
+    /** Run in a new bash process. Output is read before waiting for
+     * exit, so large outputs can't fill up the pipe and block.
+     */
+    private String runProcess(String command, Duration timeout) {
         Process process = buildAndRun(command);
         BufferedReader outputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Thread watchdog = null;
+        if (timeout != null) {
+            watchdog = new Thread(() -> {
+                try {
+                    if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                        timedOut.set(true);
+                        destroy(process);
+                    }
+                } catch (InterruptedException ex) {
+                    // Done before timeout.
+                }
+            });
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+        String output = outputReader.lines().collect(Collectors.joining("\n"));
+        int returnCode;
         try {
-            process.waitFor();
+            returnCode = process.waitFor();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (watchdog != null) {
+                watchdog.interrupt();
+            }
+        }
+        if (timedOut.get()) {
+            throw new RuntimeException(f("Shell timed out after %s: %s", timeout, command));
         }
-        int returnCode = process.exitValue();
         if (returnCode != 0) {
-            throw new RuntimeException();
+            throw new RuntimeException(f("Shell failed with exit code %d: %s", returnCode, command));
         }
-        List<String> output = outputReader.lines().collect(Collectors.toList());
-        return String.join("\n", output);
+        return output;
     }
 
     /** Inner build and run. */
@@ -57,4 +158,129 @@ public class SimpleBashClient {
             throw new RuntimeException(e);
         }
     }
+
+    /** Helper: kill process and anything it started. */
+    private static void destroy(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    /** Result of a command run in a session. */
+    private static class Result {
+
+        /** Output. */
+        private final String output;
+
+        /** Exit code. */
+        private final int exitCode;
+
+        /** Constructor. */
+        private Result(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+    }
+
+    /** A long running bash process. Commands are framed by a sentinel
+     * line carrying the exit code. Output is drained asynchronously,
+     * so neither large outputs nor slow commands block the pipe.
+     */
+    private class Session {
+
+        /** Sentinel, unique per session. */
+        private final String sentinel = "__JVARLER_DONE_" + UUID.randomUUID().toString().replace("-", "");
+
+        /** Bash process. */
+        private final Process process;
+
+        /** Commands are written here. */
+        private final Writer input;
+
+        /** Completed commands. */
+        private final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+
+        /** Constructor. Starts bash and the drainer thread. */
+        private Session() {
+            ProcessBuilder builder = new ProcessBuilder("/bin/bash", "--noprofile", "--norc");
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            builder.directory(new File(workingDir));
+            try {
+                process = builder.start();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            input = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            Thread drainer = new Thread(this::drain, "jv-bash-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        /** Run command, wait for its result. */
+        private String run(String command, Duration timeout) {
+            // Quoted for eval, no stdin so commands can't read our framing.
+            String quoted = "'" + command.replace("'", "'\\''") + "'";
+            try {
+                input.write(f("( eval %s ) </dev/null; printf '\\n%s %%d\\n' $?\n", quoted, sentinel));
+                input.flush();
+            } catch (IOException ex) {
+                throw new RuntimeException(f("Shell session failed: %s", ex.getMessage()), ex);
+            }
+
+            Result result;
+            try {
+                result = timeout != null
+                    ? results.poll(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    : results.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+            if (result == null) {
+                throw new RuntimeException(f("Shell timed out after %s: %s", timeout, command));
+            }
+            if (result.exitCode < 0) {
+                throw new RuntimeException(f("Shell session ended unexpectedly: %s", command));
+            }
+            if (result.exitCode != 0) {
+                throw new RuntimeException(f("Shell failed with exit code %d: %s", result.exitCode, command));
+            }
+            return result.output;
+        }
+
+        /** Drain output, split at sentinel lines into results. */
+        private void drain() {
+            String marker = "\n" + sentinel + " ";
+            StringBuilder pending = new StringBuilder();
+            char[] buffer = new char[8192];
+            int searchFrom = 0;
+            try (Reader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+                int read;
+                while ((read = reader.read(buffer)) > 0) {
+                    pending.append(buffer, 0, read);
+                    while (true) {
+                        int start = pending.indexOf(marker, searchFrom);
+                        int end = start >= 0 ? pending.indexOf("\n", start + marker.length()) : -1;
+                        if (end < 0) {
+                            // Only re-scan what could still hold a (partial) marker.
+                            searchFrom = start >= 0 ? start : Math.max(0, pending.length() - marker.length());
+                            break;
+                        }
+                        String output = pending.substring(0, start);
+                        int exitCode = Integer.parseInt(pending.substring(start + marker.length(), end).strip());
+                        results.add(new Result(output.lines().collect(Collectors.joining("\n")), exitCode));
+                        pending.delete(0, end + 1);
+                        searchFrom = 0;
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                // Session gone, fail whoever is waiting.
+            }
+            results.add(new Result("", -1));
+        }
+
+        /** End session. */
+        private void close() {
+            destroy(process);
+        }
+    }
 }
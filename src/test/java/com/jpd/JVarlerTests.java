@@ -1,18 +1,40 @@
 package com.jpd;
 
+import com.jpd.utils.ImmutableMapper;
+import com.jpd.utils.IndexedConfig;
 import com.jpd.utils.Mapper;
+import com.jpd.utils.OverlayMap;
+import com.jpd.utils.Placeholders;
+import com.jpd.utils.SimpleBashClient;
 import com.jpd.jinjava.MyJinjavaInstanceFactory;
+import com.jpd.jinjava.ReadTracker;
+import com.jpd.jinjava.TemplateCache;
 import com.jpd.jvarler.ConfigRenderer;
+import com.jpd.jvarler.ConfigSnapshot;
+import com.jpd.jvarler.DestinationRenderer;
+import com.jpd.jvarler.ExportsWriter;
 import com.jpd.jvarler.ValueResolver;
+import com.jpd.serialiser.JSONSerialiser;
 import com.jpd.utils.JVarlerUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.jpd.utils.JVarlerUtils.getInnerKeyMatches;
 import static com.jpd.utils.JVarlerUtils.handleOverrides;
@@ -33,6 +55,7 @@ public class JVarlerTests {
         Map<String, Object> unresolved = new HashMap<>();
         mapper.set("${../b/c}", unresolved, "a1");
         mapper.set("${../../c}", unresolved, "a2.b");
+        mapper.set("${../b/c} ${c}", unresolved, "a3");
 
         // This is our set of bindings.
         Map<String, Object> bindings = new HashMap<>();
@@ -46,6 +69,7 @@ public class JVarlerTests {
         // And assert.
         Assertions.assertEquals(mapper.get(unresolved, "a1"), "Hello");
         Assertions.assertEquals(mapper.get(unresolved, "a2.b"), "World");
+        Assertions.assertEquals(mapper.get(unresolved, "a3"), "Hello World");
     }
 
     /** Varler syntax allows multiple values per line.
@@ -123,4 +147,870 @@ public class JVarlerTests {
         Assertions.assertEquals(objects.get("1.0"), 1.0);
         Assertions.assertEquals(objects.get("This is a string."), "This is a string.");
     }
+
+    /** Templates should be read and parsed once, re-read on modification
+     * (also within the same timestamp tick).
+     */
+    @Test
+    public void templateCacheParsesOnce() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, "# Comment.\na: {{a}}");
+            TemplateCache templateCache = new TemplateCache(MyJinjavaInstanceFactory.newInstance());
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertEquals("a: " + i, templateCache.render(path.toString(), Map.of("a", i)));
+            }
+            Assertions.assertEquals(1, templateCache.getMisses());
+            Assertions.assertEquals(2, templateCache.getHits());
+
+            Files.writeString(path, "b: {{a}}");
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+            Assertions.assertEquals("b: 1", templateCache.render(path.toString(), Map.of("a", 1)));
+            Assertions.assertEquals(2, templateCache.getMisses());
+
+            // Rewritten within the same timestamp tick, size differs.
+            FileTime modified = Files.getLastModifiedTime(path);
+            Files.writeString(path, "cc: {{a}}");
+            Files.setLastModifiedTime(path, modified);
+            Assertions.assertEquals("cc: 1", templateCache.render(path.toString(), Map.of("a", 1)));
+            Assertions.assertEquals(3, templateCache.getMisses());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** Renders should record binding paths read, nested where looked up. */
+    @Test
+    public void readTrackerRecordsPaths() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, "{{ a.x }} {% for i in b %}{{ i }}{% endfor %} {{ c | tojson }}");
+            TemplateCache templateCache = new TemplateCache(MyJinjavaInstanceFactory.newInstance());
+            Map<String, Object> bindings = Map.of(
+                "a", Map.of("x", 1, "y", 2), "b", List.of(3, 4), "c", Map.of("z", 5), "d", 6);
+            ReadTracker tracker = new ReadTracker();
+            Assertions.assertEquals("1 34 {\"z\":5}",
+                templateCache.render(templateCache.get(path.toString()), bindings, tracker));
+            Assertions.assertTrue(tracker.getReads().contains(List.of("a", "x")));
+            Assertions.assertTrue(tracker.getReads().contains(List.of("b")));
+            Assertions.assertTrue(tracker.getReads().contains(List.of("c")));
+            Assertions.assertFalse(tracker.getReads().contains(List.of("a", "y")));
+            Assertions.assertFalse(tracker.getReads().contains(List.of("d")));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** Maps should serialise with keys sorted by string form, also
+     * for mixed type and null keys, as yaml gives.
+     */
+    @Test
+    public void serialiserSortsMixedKeys() {
+        Map<Object, Object> nested = new HashMap<>();
+        nested.put(1, "a");
+        nested.put("b", "c");
+        nested.put(true, "d");
+        nested.put(null, "e");
+        Assertions.assertEquals("{\"x\":{\"1\":\"a\",\"b\":\"c\",\"null\":\"e\",\"true\":\"d\"}}",
+            new JSONSerialiser().toJSONStringJackson(Map.of("x", nested)));
+    }
+
+    /** Durations should parse with and without units. */
+    @Test
+    public void testParseDuration() {
+        Assertions.assertEquals(Duration.ofMinutes(10), JVarlerUtils.parseDuration("10m"));
+        Assertions.assertEquals(Duration.ofMillis(500), JVarlerUtils.parseDuration("500ms"));
+        Assertions.assertEquals(Duration.ofSeconds(30), JVarlerUtils.parseDuration("30"));
+        Assertions.assertEquals(Duration.ofDays(2), JVarlerUtils.parseDuration(" 2d "));
+        Assertions.assertThrows(RuntimeException.class, () -> JVarlerUtils.parseDuration("10 minutes"));
+    }
+
+    /** Overlays should see the same values as an update into a copy,
+     * while leaving the shared base untouched.
+     */
+    @Test
+    public void overlayMatchesUpdate() {
+        Mapper mapper = new Mapper();
+        Map<String, Object> base = new HashMap<>();
+        mapper.set(1, base, "a.b");
+        mapper.set(2, base, "a.c");
+        mapper.set(new ArrayList<>(List.of("x")), base, "l");
+        Map<String, Object> frozen = OverlayMap.freeze(base);
+
+        Map<String, Object> src = new HashMap<>();
+        mapper.set(3, src, "a.c");
+        mapper.set(4, src, "d");
+        mapper.set(List.of("y"), src, "l");
+        Map<String, Object> overlay = mapper.overlay(src, frozen);
+
+        Assertions.assertEquals(1, mapper.get(overlay, "a.b"));
+        Assertions.assertEquals(3, mapper.get(overlay, "a.c"));
+        Assertions.assertEquals(4, mapper.get(overlay, "d"));
+        Assertions.assertEquals(List.of("x", "y"), mapper.get(overlay, "l"));
+        Assertions.assertEquals(2, mapper.get(frozen, "a.c"));
+        Assertions.assertEquals(List.of("x"), mapper.get(frozen, "l"));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> frozen.put("d", 5));
+
+        // Maps nested under null (`~`) values overlay an empty map.
+        base.put("n", null);
+        Map<String, Object> nested = new HashMap<>();
+        mapper.set(1, nested, "n.m");
+        Assertions.assertEquals(1, mapper.get(mapper.overlay(nested, OverlayMap.freeze(base)), "n.m"));
+        Assertions.assertEquals(1, mapper.get(
+            new ImmutableMapper().overlay(nested, base, Mapper.ArrayStrategy.APPEND), "n.m"));
+    }
+
+    /** Graph resolution should match default resolution for
+     * nested and chained references, and fail on cycles, also
+     * across layers.
+     */
+    @Test
+    public void testGraphResolution() {
+        Mapper mapper = new Mapper();
+        Map<String, Object> config = new HashMap<>();
+        mapper.set("${/b}", config, "a");
+        mapper.set("${/c}-x", config, "b");
+        mapper.set(1, config, "c");
+        mapper.set("${/d${/c}}", config, "e");
+        mapper.set("${/a}", config, "d1");
+        mapper.set("${/missing}", config, "f");
+
+        ValueResolver resolver = new ValueResolver();
+        resolver.setGraphResolution(true);
+        resolver.addLayer(config);
+        resolver.resolveAll(config);
+
+        Assertions.assertEquals("1-x", config.get("a"));
+        Assertions.assertEquals("1-x", config.get("e"));
+        Assertions.assertEquals("${/missing}", config.get("f"));
+
+        Map<String, Object> cyclic = new HashMap<>();
+        mapper.set("${/b}", cyclic, "a");
+        mapper.set("${/a}", cyclic, "b");
+        resolver.clearLayers();
+        resolver.addLayer(cyclic);
+        IllegalArgumentException ex = Assertions.assertThrows(
+            IllegalArgumentException.class, () -> resolver.resolveAll(cyclic));
+        Assertions.assertTrue(ex.getMessage().matches("Reference cycle: (/a -> /b -> /a|/b -> /a -> /b)"));
+
+        // Self references in another layer aren't cycles in the graph, but grow forever.
+        Map<String, Object> layer = new HashMap<>();
+        mapper.set("a${/x}", layer, "x");
+        Map<String, Object> growing = new HashMap<>();
+        mapper.set("${/x}", growing, "y");
+        resolver.clearLayers();
+        resolver.addLayer(layer);
+        resolver.addLayer(growing);
+        ex = Assertions.assertThrows(IllegalArgumentException.class, () -> resolver.resolveAll(growing));
+        Assertions.assertTrue(ex.getMessage().contains("/x -> /x"), ex.getMessage());
+    }
+
+    /** Per page delta resolution should still resolve values
+     * delayed across pages, including relative references and
+     * references held under keys with dots.
+     */
+    @Test
+    public void delayedResolutionAcrossPages() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, "a: ${b}\nc:\n  d: ${../e}-${/a}\n---\nb: 1\n"
+                + "labels:\n  app.kubernetes.io/name: ${/e}-x\n---\ne: 2\n");
+            ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withOverrides(handleOverrides(List.of()))
+                .withConfigs(List.of(path.toString()))
+                .build();
+            configRenderer.render();
+
+            Mapper mapper = new Mapper();
+            Map<String, Object> config = configRenderer.getOutput().getMap();
+            Assertions.assertEquals(1, mapper.get(config, "a"));
+            Assertions.assertEquals("2-1", mapper.get(config, "c.d"));
+            Assertions.assertEquals(Map.of("app.kubernetes.io/name", "2-x"), config.get("labels"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** Scanner should only pick up innermost references and keep
+     * everything else as literal segments.
+     */
+    @Test
+    public void testPlaceholderScanner() {
+        Placeholders placeholders = Placeholders.scan(
+            "x${/c${/b${/a}}}:${/d:-e}${/", "${/", "}");
+        Assertions.assertEquals(List.of("a", "d:-e"), placeholders.getKeyPaths());
+        StringBuilder joined = new StringBuilder();
+        placeholders.getSegments().forEach(segment -> joined.append(segment.getText()));
+        Assertions.assertEquals("x${/c${/b${/a}}}:${/d:-e}${/", joined.toString());
+        Assertions.assertTrue(Placeholders.scan("${/a}", "${/", "}").isSingleReference());
+        Assertions.assertFalse(Placeholders.scan("${a}", "${/", "}").hasReferences());
+    }
+
+    /** Shells in a session should behave like shells run in a new
+     * bash each, including output framing, isolation and failures.
+     */
+    @Test
+    public void testBashSession() {
+        String command = "cd /; X=1; echo \"it's\"; printf 'a\\n\\n'; printf 'no newline'";
+        try (SimpleBashClient plain = new SimpleBashClient(".");
+             SimpleBashClient session = new SimpleBashClient(".", true)) {
+            Assertions.assertEquals(plain.run(command), session.run(command));
+            Assertions.assertEquals("unset", session.run("echo ${X:-unset}"));
+            Assertions.assertEquals(plain.run("pwd"), session.run("pwd"));
+            Assertions.assertEquals(2000000, session.run("head -c 2000000 /dev/zero | tr '\\0' a").length());
+            Assertions.assertThrows(RuntimeException.class, () -> session.run("exit 3"));
+            Assertions.assertThrows(RuntimeException.class,
+                () -> session.runWithTimeout(Duration.ofMillis(200), "sleep 5"));
+            Assertions.assertEquals("ok", session.run("echo ok"));
+
+            // Shells are run verbatim, `%` needn't be escaped.
+            Assertions.assertEquals("100% a", plain.run("printf '%s %s' 100% a"));
+            Assertions.assertEquals("100% a", session.run("printf '%s %s' 100% a"));
+            Assertions.assertEquals("a 1", plain.run("echo %s %d", "a", 1));
+        }
+    }
+
+    /** Exports should be canonical, whatever the order of the config,
+     * and not be rewritten if unchanged.
+     */
+    @Test
+    public void testExportsWriter() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Map<String, Object> config = new LinkedHashMap<>();
+            config.put("b", List.of(1, Map.of()));
+            config.put("a", new LinkedHashMap<>(Map.of("d", "x")));
+            Map<String, Object> reversed = new LinkedHashMap<>();
+            reversed.put("a", config.get("a"));
+            reversed.put("b", config.get("b"));
+
+            Path exports = dir.resolve("exports.json");
+            String manifest = dir.resolve("exports.json.outputs").toString();
+            new ExportsWriter(true, manifest).write(exports.toString(), config);
+            Assertions.assertEquals("{\"a\":{\"d\":\"x\"},\"b\":[1,{}]}", Files.readString(exports));
+
+            Files.setLastModifiedTime(exports, FileTime.fromMillis(0));
+            new ExportsWriter(true, manifest).write(exports.toString(), reversed);
+            Assertions.assertEquals(0, Files.getLastModifiedTime(exports).toMillis());
+
+            // Laid out as before (org.json), null values left out.
+            reversed.put("c", null);
+            reversed.put("e", new LinkedHashMap<>(Map.of("f", List.of("y"), "g", new ArrayList<>())));
+            new ExportsWriter(false, manifest).write(exports.toString(), reversed);
+            Assertions.assertEquals("{\n    \"a\": {\"d\": \"x\"},\n    \"b\": [\n        1,\n        {}\n    ],\n"
+                    + "    \"e\": {\n        \"f\": [\"y\"],\n        \"g\": []\n    }\n}",
+                Files.readString(exports));
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Exports should chain back in (`-j`), also if the config holds
+     * null values.
+     */
+    @Test
+    public void exportsChainIntoVarsJson() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Files.writeString(dir.resolve("config.yml"), "a: 1\nb:\n");
+            Files.writeString(dir.resolve("destinations.yaml"), "- {shell: 'true'}\n");
+            Path exports = dir.resolve("exports.json");
+            Path chained = dir.resolve("chained.json");
+            String[] inputArgs = new String[]{"-c", dir.resolve("config.yml").toString(),
+                "-d", dir.resolve("destinations.yaml").toString(), "-e", exports.toString()};
+            JVarlerMain.run(ArgParser.parseArgs(inputArgs), MyJinjavaInstanceFactory::newInstance,
+                new TemplateCache(MyJinjavaInstanceFactory.newInstance()));
+            Assertions.assertFalse(Files.readString(exports).contains("\"b\""));
+
+            // Once through the snapshot, once through the exports json.
+            for (int i = 0; i < 2; i++) {
+                inputArgs[5] = chained.toString();
+                JVarlerMain.run(ArgParser.parseArgs(
+                        Stream.concat(Arrays.stream(inputArgs), Stream.of("-j", exports.toString()))
+                            .toArray(String[]::new)),
+                    MyJinjavaInstanceFactory::newInstance, new TemplateCache(MyJinjavaInstanceFactory.newInstance()));
+                Assertions.assertEquals(Files.readString(exports), Files.readString(chained));
+                Files.deleteIfExists(Path.of(exports + ConfigSnapshot.SNAPSHOT_SUFFIX));
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** An output edited within the same timestamp tick the manifest was
+     * saved in (size and modification time unchanged) should still be
+     * found changed, and rewritten.
+     */
+    @Test
+    public void outputManifestRacyEntries() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Files.writeString(dir.resolve("a.tpl"), "{{ a }}");
+            Path destinations = dir.resolve("destinations.yaml");
+            Files.writeString(destinations, String.format("- source: %1$s/a.tpl\n  destination: %1$s/out-a\n", dir));
+            Path out = dir.resolve("out-a");
+            Path manifest = dir.resolve("exports.json.outputs");
+            DestinationRenderer.Builder builder = DestinationRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withTemplateInputPath(destinations.toString())
+                .withBindings(new HashMap<>(Map.of("a", 1)))
+                .withOutputManifestPath(manifest.toString())
+                .skipUnchanged(true);
+            builder.build().render();
+
+            // Coarse timestamps: output, its edit and the manifest all in one tick.
+            FileTime tick = Files.getLastModifiedTime(out);
+            Files.writeString(out, "2");
+            Files.setLastModifiedTime(out, tick);
+            Files.setLastModifiedTime(manifest, tick);
+            builder.build().render();
+            Assertions.assertEquals("1", Files.readString(out));
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Renders should be cached by template and bindings, reused across
+     * runs (e.g. switching back to earlier bindings) and evicted down
+     * to the maximum cache size.
+     */
+    @Test
+    public void renderCacheReusedAcrossRuns() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Files.writeString(dir.resolve("a.tpl"), "{{ a }}");
+            Path destinations = dir.resolve("destinations.yaml");
+            Files.writeString(destinations, String.format("- source: %1$s/a.tpl\n  destination: %1$s/out-a\n", dir));
+            Path cache = dir.resolve("cache");
+            Path out = dir.resolve("out-a");
+
+            renderCached(destinations, cache, 1, 1024 * 1024);
+            renderCached(destinations, cache, 2, 1024 * 1024);
+            Assertions.assertEquals("2", Files.readString(out));
+            List<Path> entries = listFiles(cache);
+            Assertions.assertEquals(2, entries.size());
+
+            // Back to earlier bindings: served from cache, not rendered.
+            for (Path entry : entries) {
+                Files.writeString(entry, Files.readString(entry).replace("\"output\":\"1\"", "\"output\":\"cached\""));
+            }
+            renderCached(destinations, cache, 1, 1024 * 1024);
+            Assertions.assertEquals("cached", Files.readString(out));
+
+            renderCached(destinations, cache, 3, 0);
+            Assertions.assertEquals("3", Files.readString(out));
+            Assertions.assertTrue(listFiles(cache).isEmpty());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Helper: render destinations with a render cache, {@code a} bound. */
+    private static void renderCached(Path destinations, Path cache, int a, long maxBytes) {
+        DestinationRenderer.Builder.newInstance()
+            .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+            .withTemplateInputPath(destinations.toString())
+            .withBindings(new HashMap<>(Map.of("a", a)))
+            .withRenderCache(cache.toString(), maxBytes)
+            .build()
+            .render();
+    }
+
+    /** Helper: regular files under dir. */
+    private static List<Path> listFiles(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    /** Destinations lists should get the same content as the first
+     * destination, hard linked if asked to, and only changed targets
+     * be rewritten if `writeIf.changed`.
+     */
+    @Test
+    public void destinationsFanOut() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Files.writeString(dir.resolve("a.tpl"), "{{ a }}");
+            Path destinations = dir.resolve("destinations.yaml");
+            Files.writeString(destinations, String.format(
+                "- source: %1$s/a.tpl\n  destination: %1$s/out\n  destinations: [%1$s/c1, %1$s/c2]\n"
+                    + "  writeIf: {changed: true}\n"
+                    + "- source: %1$s/a.tpl\n  destination: %1$s/hard\n  destinations: [%1$s/h1]\n  link: hard\n",
+                dir));
+            DestinationRenderer.Builder builder = DestinationRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withTemplateInputPath(destinations.toString())
+                .withBindings(new HashMap<>(Map.of("a", 1)));
+            builder.build().render();
+            for (String name : List.of("out", "c1", "c2", "hard", "h1")) {
+                Assertions.assertEquals("1", Files.readString(dir.resolve(name)));
+            }
+            Assertions.assertFalse(Files.isSameFile(dir.resolve("out"), dir.resolve("c1")));
+            Assertions.assertTrue(Files.isSameFile(dir.resolve("hard"), dir.resolve("h1")));
+
+            // Only the changed target is rewritten.
+            Files.writeString(dir.resolve("c2"), "x");
+            Files.setLastModifiedTime(dir.resolve("c1"), FileTime.fromMillis(0));
+            builder.build().render();
+            Assertions.assertEquals("1", Files.readString(dir.resolve("c2")));
+            Assertions.assertEquals(0, Files.getLastModifiedTime(dir.resolve("c1")).toMillis());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Outputs should be committed all or nothing: if moving any in
+     * place fails, outputs moved before are restored, staged and
+     * backup files removed.
+     */
+    @Test
+    public void outputsCommittedAllOrNothing() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            // Larger template first, so out-a is committed before out-b fails.
+            Files.writeString(dir.resolve("a.tpl"), "new " + "a".repeat(100));
+            Files.writeString(dir.resolve("b.tpl"), "b");
+            Files.writeString(dir.resolve("out-a"), "old");
+            Files.createDirectories(dir.resolve("out-b"));
+            Files.writeString(dir.resolve("out-b").resolve("x"), "x");
+            Path destinations = dir.resolve("destinations.yaml");
+            Files.writeString(destinations, String.format(
+                "- source: %1$s/a.tpl\n  destination: %1$s/out-a\n"
+                    + "- source: %1$s/b.tpl\n  destination: %1$s/out-b\n", dir));
+            DestinationRenderer.Builder builder = DestinationRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withTemplateInputPath(destinations.toString())
+                .withBindings(new HashMap<>());
+
+            // Can't replace a non-empty directory.
+            Assertions.assertThrows(RuntimeException.class, () -> builder.build().render());
+            Assertions.assertEquals("old", Files.readString(dir.resolve("out-a")));
+            Assertions.assertTrue(Files.isDirectory(dir.resolve("out-b")));
+            try (Stream<Path> paths = Files.list(dir)) {
+                Assertions.assertEquals(List.of(), paths.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(".jvtmp") || name.endsWith(".jvbak"))
+                    .collect(Collectors.toList()));
+            }
+
+            Files.delete(dir.resolve("out-b").resolve("x"));
+            Files.delete(dir.resolve("out-b"));
+            builder.build().render();
+            Assertions.assertEquals("new " + "a".repeat(100), Files.readString(dir.resolve("out-a")));
+            Assertions.assertEquals("b", Files.readString(dir.resolve("out-b")));
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Rebinding should reuse shell outputs and only re-render
+     * destinations whose binding reads changed.
+     */
+    @Test
+    public void rebindReusesShells() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Files.writeString(dir.resolve("a.tpl"), "{{ a }}-{{ s }}");
+            Files.writeString(dir.resolve("b.tpl"), "{{ b }}");
+            Path destinations = dir.resolve("destinations.yaml");
+            Files.writeString(destinations, String.format(
+                "- shell: date +%%s%%N\n  store: s\n"
+                    + "- source: %1$s/a.tpl\n  destination: %1$s/out-a\n"
+                    + "- source: %1$s/b.tpl\n  destination: %1$s/out-b\n", dir));
+            DestinationRenderer destinationRenderer = DestinationRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withTemplateInputPath(destinations.toString())
+                .withBindings(new HashMap<>(Map.of("a", 1, "b", 1)))
+                .skipUnchanged(true)
+                .trackReads(true)
+                .build();
+            destinationRenderer.render();
+            String shellOutput = Files.readString(dir.resolve("out-a")).substring(2);
+            Files.setLastModifiedTime(dir.resolve("out-b"), FileTime.fromMillis(0));
+
+            Assertions.assertTrue(destinationRenderer.rebind(new HashMap<>(Map.of("a", 2, "b", 1))));
+            Assertions.assertEquals("2-" + shellOutput, Files.readString(dir.resolve("out-a")));
+            Assertions.assertEquals(0, Files.getLastModifiedTime(dir.resolve("out-b")).toMillis());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Shell graphs should fail on duplicate ids, unknown ids and cycles,
+     * and shells not declaring `after` should wait for all shells
+     * defined before them.
+     */
+    @Test
+    public void shellDependencies() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            RuntimeException ex = Assertions.assertThrows(RuntimeException.class, () -> renderShells(dir,
+                "- {shell: 'true', id: a}\n- {shell: 'true', id: a, after: []}\n"));
+            Assertions.assertEquals("Duplicate shell id: a", ex.getMessage());
+            ex = Assertions.assertThrows(RuntimeException.class, () -> renderShells(dir,
+                "- {shell: 'true', id: a, after: [x]}\n"));
+            Assertions.assertEquals("Unknown shell id in after: x", ex.getMessage());
+            ex = Assertions.assertThrows(RuntimeException.class, () -> renderShells(dir,
+                "- {shell: 'true', id: a, after: [b]}\n- {shell: 'true', id: b, after: [a]}\n"));
+            Assertions.assertTrue(ex.getMessage().startsWith("Shell dependency cycle at: "));
+
+            // The slow first shell runs in parallel with the second,
+            // the third (no `after`) waits for both.
+            Path log = dir.resolve("log");
+            renderShells(dir, String.format(
+                "- {shell: 'sleep 0.5; echo a >> %1$s', id: a, after: []}\n"
+                    + "- {shell: 'echo b >> %1$s', id: b, after: []}\n"
+                    + "- {shell: 'echo c >> %1$s'}\n", log));
+            Assertions.assertEquals(List.of("b", "a", "c"), Files.readAllLines(log));
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Shells declaring `after` should run in parallel (up to the number
+     * of jobs), and the number of jobs be validated up front.
+     */
+    @Test
+    public void shellsRunInParallel() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            // Each waits for the other to start, so only passes if run concurrently.
+            renderShells(dir, String.format(
+                "- {shell: 'touch %1$s/a; until [ -f %1$s/b ]; do sleep 0.01; done', after: [], timeout: 5s}\n"
+                    + "- {shell: 'touch %1$s/b; until [ -f %1$s/a ]; do sleep 0.01; done', after: [], timeout: 5s}\n",
+                dir));
+            Assertions.assertTrue(Files.exists(dir.resolve("a")) && Files.exists(dir.resolve("b")));
+
+            Assertions.assertThrows(RuntimeException.class,
+                () -> ArgParser.parseArgs(new String[]{"-c", "c.yml", "--jobs", "0"}));
+            Assertions.assertEquals(3, ArgParser.parseArgs(new String[]{"-c", "c.yml", "--jobs", "3"}).getJobs());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Helper: render destinations (shells) in dir. */
+    private static void renderShells(Path dir, String destinations) throws IOException {
+        Path path = dir.resolve("destinations.yaml");
+        Files.writeString(path, destinations);
+        DestinationRenderer.Builder.newInstance()
+            .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+            .withTemplateInputPath(path.toString())
+            .withBindings(new HashMap<>())
+            .allowParallel(true)
+            .withJobs(2)
+            .build()
+            .render();
+    }
+
+    /** Relative paths (args, sources, destinations) should resolve,
+     * and shells run, against a given working dir (e.g. a daemon
+     * client's) rather than the process working dir.
+     */
+    @Test
+    public void pathsResolveAgainstWorkingDir() throws IOException {
+        Path dir = Files.createTempDirectory("jvarler");
+        try {
+            Files.writeString(dir.resolve("config.yml"), "a: 1\n");
+            Files.writeString(dir.resolve("a.tpl"), "{{ a }} {{ w }}");
+            Files.writeString(dir.resolve("destinations.yaml"),
+                "- shell: pwd\n  store: w\n- source: a.tpl\n  destination: out-a\n");
+            ArgParser.Args args = ArgParser.parseArgs(new String[]{
+                "-c", "config.yml", "-d", "destinations.yaml", "-e", "exports.json"}).withWorkingDir(dir.toString());
+            JVarlerMain.run(args, MyJinjavaInstanceFactory::newInstance, new TemplateCache(
+                MyJinjavaInstanceFactory.newInstance()));
+            Assertions.assertEquals("1 " + dir, Files.readString(dir.resolve("out-a")).strip());
+            Assertions.assertTrue(Files.exists(dir.resolve("exports.json")));
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /** Snapshots should round trip, also with mixed type keys, and
+     * only be fresh for the exports written along with them.
+     */
+    @Test
+    public void testConfigSnapshot() throws IOException {
+        Path exports = Files.createTempFile("jvarler", ".json");
+        Path snapshot = Path.of(exports + ConfigSnapshot.SNAPSHOT_SUFFIX);
+        try {
+            Map<Object, Object> mixed = new HashMap<>();
+            mixed.put(1, "a");
+            mixed.put("b", "c");
+            mixed.put(true, "d");
+            Map<String, Object> config = new HashMap<>(Map.of(
+                "a", 1,
+                "b", new HashMap<>(Map.of(
+                    "c", new HashMap<>(Map.of("d", List.of(1, "x"))),
+                    "e", new HashMap<>(),
+                    "m", new HashMap<>(Map.of("n", mixed)))),
+                "f", "g"));
+            String hash = new ExportsWriter(true, null).write(exports.toString(), config);
+            ConfigSnapshot.write(snapshot, config, hash);
+            Assertions.assertTrue(ConfigSnapshot.isSnapshot(snapshot));
+            Assertions.assertFalse(ConfigSnapshot.isSnapshot(exports));
+
+            ConfigSnapshot loaded = ConfigSnapshot.open(snapshot);
+            Map<String, Object> map = loaded.getMap();
+            Mapper mapper = new Mapper();
+            Assertions.assertEquals(Map.of("1", "a", "b", "c", "true", "d"), mapper.get(map, "b.m.n"));
+            Assertions.assertEquals(List.of(1, "x"), mapper.get(map, "b.c.d"));
+            Assertions.assertEquals(Map.of(), mapper.get(map, "b.e"));
+            Assertions.assertEquals(1, map.get("a"));
+            Assertions.assertEquals("g", map.get("f"));
+            Assertions.assertTrue(loaded.isFreshFor(exports));
+
+            // Same size and modification time, different content.
+            FileTime modified = Files.getLastModifiedTime(exports);
+            Files.writeString(exports, Files.readString(exports).replace("\"g\"", "\"h\""));
+            Files.setLastModifiedTime(exports, modified);
+            Assertions.assertFalse(loaded.isFreshFor(exports));
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.delete(exports);
+        }
+    }
+
+    /** Multiple configs should be merged left to right, page by page. */
+    @Test
+    public void multipleConfigsMergedInOrder() throws IOException {
+        Path base = Files.createTempFile("jvarler", ".yml");
+        Path layer = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(base, "a: 1\nb:\n  c: x\n  d: [1]\n---\ne: \"{{ a }}\"\n");
+            Files.writeString(layer, "a: 2\nb:\n  d: [2]\n---\nf: ${/b/c}\n");
+            ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withOverrides(handleOverrides(List.of()))
+                .withConfigs(List.of(base.toString(), layer.toString()))
+                .build();
+            configRenderer.render();
+
+            Mapper mapper = new Mapper();
+            Map<String, Object> config = configRenderer.getOutput().getMap();
+            Assertions.assertEquals(2, mapper.get(config, "a"));
+            Assertions.assertEquals(List.of(1, 2), mapper.get(config, "b.d"));
+            Assertions.assertEquals("2", mapper.get(config, "e"));
+            Assertions.assertEquals("x", mapper.get(config, "f"));
+        } finally {
+            Files.delete(base);
+            Files.delete(layer);
+        }
+    }
+
+    /** Pages rendered concurrently should give the same config as
+     * rendering page by page, also if values resolve on later pages.
+     */
+    @Test
+    public void concurrentPagesMatchSequential() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, String.join("\n---\n",
+                "a: 1\nb: ${/late}",
+                "c: ${/d}\nl: [1]",
+                "d: \"{{ a }}\"\nl: [2]",
+                "e: \"{{ c }}-{{ b }}\"",
+                "f: \"{{ d }}\"\nlate: x",
+                "g: \"{{ a }}\"\nl: [3]",
+                "{% if a %}h: 1{% endif %}",
+                "i: \"{{ h }}\""));
+            List<Map<String, Object>> configs = new ArrayList<>();
+            for (boolean allowParallel : List.of(false, true)) {
+                ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
+                    .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                    .withOverrides(handleOverrides(List.of()))
+                    .withConfigs(List.of(path.toString()))
+                    .withAllowParallel(allowParallel)
+                    .build();
+                configRenderer.render();
+                configs.add(configRenderer.getOutput().getMap());
+            }
+            Assertions.assertEquals(configs.get(0), configs.get(1));
+            Assertions.assertEquals("1-x", configs.get(1).get("e"));
+            Assertions.assertEquals("x", configs.get(1).get("b"));
+            Assertions.assertEquals(List.of(1, 2, 3), configs.get(1).get("l"));
+            Assertions.assertEquals("1", configs.get(1).get("i"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** Templated pages should be parsed once across runs sharing a
+     * template cache, static pages not at all.
+     */
+    @Test
+    public void pagesParsedOnceStaticSkipped() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, "a: 1\n---\nb: \"{x}\"\n---\nc: \"{{ a }}{{ b }}\"\n");
+            TemplateCache templateCache = new TemplateCache(MyJinjavaInstanceFactory.newInstance());
+            for (int i = 0; i < 2; i++) {
+                ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
+                    .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                    .withTemplateCache(templateCache)
+                    .withOverrides(handleOverrides(List.of()))
+                    .withConfigs(List.of(path.toString()))
+                    .build();
+                configRenderer.render();
+                Assertions.assertEquals("1{x}", configRenderer.getOutput().getMap().get("c"));
+            }
+            Assertions.assertEquals(1, templateCache.getMisses());
+            Assertions.assertEquals(1, templateCache.getHits());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** Indexed configs should look up paths as plain maps do, also
+     * after changes made via the mapper or directly.
+     */
+    @Test
+    public void indexedConfigMatchesPlainMap() {
+        Mapper dots = new Mapper();
+        Mapper slashes = new Mapper();
+        slashes.setSeparator("[/]");
+        slashes.setJoiner("/");
+        IndexedConfig config = new IndexedConfig();
+        List<Runnable> changes = List.of(
+            () -> dots.set(1, config, "a.b.c"),
+            () -> ((Map<String, Object>) config.get("a")).put("b", new HashMap<>(Map.of("c", 2, "d.e", 3))),
+            () -> dots.update(
+                new HashMap<>(Map.of("a", new HashMap<>(Map.of("b", new HashMap<>(Map.of("c", 4)))))), config),
+            () -> config.put("a", "x"),
+            () -> dots.get(config, true, "a"));
+        List<String> paths = List.of("a", "a.b", "a.b.c", "a.b.d.e", "a..b", "a/b/c", "a/b/d.e", "b");
+        for (Runnable change : changes) {
+            change.run();
+            HashMap<String, Object> plain = new HashMap<>(config);
+            for (int i = 0; i < 2; i++) {
+                for (String path : paths) {
+                    Assertions.assertEquals(dots.get(plain, path), dots.get(config, path), path);
+                    Assertions.assertEquals(slashes.get(plain, path), slashes.get(config, path), path);
+                }
+            }
+        }
+        Assertions.assertTrue(config.getIndexSize() <= paths.size() * 2);
+    }
+
+    /** Immutable mapper should match the mapper, whatever the strategy,
+     * and be shareable across threads.
+     */
+    @Test
+    public void immutableMapperMatchesMapper() throws InterruptedException {
+        ImmutableMapper immutable = new ImmutableMapper();
+        for (Mapper.ArrayStrategy strategy : List.of(
+            Mapper.ArrayStrategy.REPLACE, Mapper.ArrayStrategy.APPEND, Mapper.ArrayStrategy.UNION)) {
+            Mapper mapper = new Mapper();
+            mapper.setArrayStrategy(strategy);
+            JSONSerialiser serialiser = new JSONSerialiser();
+            String base = "{\"a\": {\"b\": [1], \"c\": {\"d\": 1}}, \"e\": \"x\", \"f\": [1]}";
+            String src = "{\"a\": {\"b\": [2], \"c\": {\"d\": 2, \"g\": [3]}}, \"e\": [2], \"f\": [2], \"h\": 1}";
+            Map<String, Object> expected = serialiser.fromJSONStringJackson(base, HashMap.class);
+            Map<String, Object> actual = serialiser.fromJSONStringJackson(base, HashMap.class);
+            mapper.update(serialiser.fromJSONStringJackson(src, HashMap.class), expected);
+            immutable.update(serialiser.fromJSONStringJackson(src, HashMap.class), actual, strategy);
+            Assertions.assertEquals(expected, actual, strategy.name());
+        }
+
+        Mapper mapper = new Mapper();
+        IndexedConfig config = new IndexedConfig();
+        immutable.set(1, config, ImmutableMapper.MapPath.parse(ImmutableMapper.Syntax.DOTS, "a.b", "c"));
+        immutable.set(2, config, ImmutableMapper.MapPath.parse(ImmutableMapper.Syntax.SLASHES, "a/d"));
+        Assertions.assertEquals(Map.of("a", Map.of("b", Map.of("c", 1), "d", 2)), config);
+        List<String> paths = List.of("a", "a.b", "a.b.c", "a.b.c.d", "a..b", "a.d", "x.y");
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    for (String path : paths) {
+                        Object value = immutable.get(config, ImmutableMapper.Syntax.DOTS, path);
+                        if (!Objects.equals(mapper.get(new HashMap<>(config), path), value)) {
+                            failures.add(new AssertionError(path));
+                        }
+                    }
+                }
+            });
+            thread.setUncaughtExceptionHandler((t, ex) -> failures.add(ex));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(List.of(), failures);
+    }
+
+    /** Lists should be merged as per the strategies declared on page 0,
+     * appended otherwise.
+     */
+    @Test
+    public void arrayStrategiesPerPath() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, "_arrays:\n  a.tags: union\n  servers: {mergeByKey: name}\n"
+                + "  servers.ports: union\n"
+                + "a: {tags: [x, y]}\nservers: [{name: s, ports: [1]}]\nplain: [1]\n---\n"
+                + "a: {tags: [y, z, z]}\nservers: [{name: s, ports: [1, 2]}, {name: t}, {name: t, ports: [3]}]\n"
+                + "plain: [1]\n");
+            ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withOverrides(handleOverrides(List.of()))
+                .withConfigs(List.of(path.toString()))
+                .build();
+            configRenderer.render();
+            Map<String, Object> config = configRenderer.getOutput().getMap();
+            Assertions.assertFalse(config.containsKey("_arrays"));
+            Assertions.assertEquals(Map.of("tags", List.of("x", "y", "z")), config.get("a"));
+            Assertions.assertEquals(List.of(Map.of("name", "s", "ports", List.of(1, 2)),
+                Map.of("name", "t", "ports", List.of(3))), config.get("servers"));
+            Assertions.assertEquals(List.of(1, 1), config.get("plain"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /** Pages should be split at `---` lines only, skipping comment and
+     * blank lines, whatever the line endings.
+     */
+    @Test
+    public void pagesSplitSkippingComments() throws IOException {
+        Path path = Files.createTempFile("jvarler", ".yml");
+        try {
+            Files.writeString(path, "# c\r\na: 1\r\n\r\n  # indented\r\nb: |\r\n  x\r\n---\rc: \"{{ a }}\"\n");
+            ConfigRenderer configRenderer = ConfigRenderer.Builder.newInstance()
+                .withJinjavaInstanceFactory(MyJinjavaInstanceFactory::newInstance)
+                .withOverrides(handleOverrides(List.of()))
+                .withConfigs(List.of(path.toString()))
+                .build();
+            configRenderer.render();
+            Map<String, Object> config = configRenderer.getOutput().getMap();
+            Assertions.assertEquals(1, config.get("a"));
+            Assertions.assertEquals("x", config.get("b"));
+            Assertions.assertEquals("1", config.get("c"));
+        } finally {
+            Files.delete(path);
+        }
+    }
 }